@@ -1,23 +1,32 @@
 package net.gvsun.session;
 
 import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import net.gvsun.session.codec.ShareAttributeCodec;
 import net.gvsun.session.http.CookieHttpSessionIdResolver;
 import net.gvsun.session.http.HttpSessionAdapter;
 import net.gvsun.session.http.HttpSessionIdResolver;
 import net.gvsun.session.http.OnCommittedResponseWrapper;
+import net.gvsun.session.repository.AsyncSessionRepository;
+import net.gvsun.session.repository.MSession;
+import net.gvsun.session.repository.RedisSession;
 import net.gvsun.session.repository.RedisSessionRepository;
 import net.gvsun.session.repository.Session;
 import net.gvsun.session.repository.SessionRepository;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.util.StringUtils;
+import org.springframework.web.util.UrlPathHelper;
 import org.springframework.web.filter.OncePerRequestFilter;
 
 import javax.servlet.*;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletRequestWrapper;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
 import java.io.IOException;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.regex.Pattern;
 
 /**
  * 替换tomcat提供的HttpSession
@@ -39,7 +48,14 @@ public class UnifySessionFilter<S extends Session> extends OncePerRequestFilter
     //在HttpServletRequest中标记一个session
     public static final String CURRENT_SESSION_ATTR = SESSION_REPOSITORY_ATTR + ".CURRENT_SESSION";
     public static final String INVALID_SESSION_ID_ATTR = SESSION_REPOSITORY_ATTR + ".invalidSessionId";
+    //计算请求在应用内的路径，去掉contextPath和;jsessionid等路径参数并解码
+    private static final UrlPathHelper URL_PATH_HELPER = new UrlPathHelper();
     private final UnifySessionProperties properties;
+    //提前加载session的异步仓库，为null时在第一次访问session时同步加载
+    private AsyncSessionRepository<S> asyncSessionRepository;
+    //不使用session和只读session的路径，没有配置时为null
+    private final Pattern sessionFreePaths;
+    private final Pattern readOnlyPaths;
 
     public UnifySessionFilter(SessionRepository<S> sessionRepository, UnifySessionProperties properties) {
         if (sessionRepository == null) {
@@ -50,17 +66,145 @@ public class UnifySessionFilter<S extends Session> extends OncePerRequestFilter
         }
         this.properties = properties;
         this.sessionRepository = sessionRepository;
+        this.sessionFreePaths = compilePaths(properties.getSessionFreePaths());
+        this.readOnlyPaths = compilePaths(properties.getReadOnlyPaths());
+    }
+
+    /**
+     * 设置异步仓库后，请求进入过滤器时就开始加载客户端携带的session，和过滤器链中的其他处理同时进行。
+     * 请求结束时没有使用的加载会被取消，还在排队的加载不再访问仓库；
+     * 已经开始的加载无法取消，不使用session的路径应配置为sessionFreePaths
+     */
+    public void setAsyncSessionRepository(AsyncSessionRepository<S> asyncSessionRepository) {
+        this.asyncSessionRepository = asyncSessionRepository;
+    }
+
+    @Override
+    public void destroy() {
+        if (asyncSessionRepository instanceof DisposableBean) {
+            try {
+                ((DisposableBean) asyncSessionRepository).destroy();
+            } catch (Exception e) {
+                logger.error("关闭asyncSessionRepository失败", e);
+            }
+        }
+        if (sessionRepository instanceof DisposableBean) {
+            try {
+                ((DisposableBean) sessionRepository).destroy();
+            } catch (Exception e) {
+                logger.error("关闭sessionRepository失败", e);
+            }
+        }
     }
 
     @Override
     protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain) throws ServletException, IOException {
+        String path = this.sessionFreePaths != null || this.readOnlyPaths != null
+                ? URL_PATH_HELPER.getPathWithinApplication(request) : null;
+        if (this.sessionFreePaths != null && this.sessionFreePaths.matcher(path).matches()) {
+            filterChain.doFilter(new SessionFreeRequestWrapper(request), response);
+            return;
+        }
+        boolean readOnly = this.readOnlyPaths != null && this.readOnlyPaths.matcher(path).matches();
         //使用包装器模式，包装原始的request和response用于替换tomcat容器提供的session管理机制
-        UnifyRequestWrapper unifyRequestWrapper = new UnifyRequestWrapper(request, response);
+        UnifyRequestWrapper unifyRequestWrapper = new UnifyRequestWrapper(request, response, readOnly);
         UnifyResponseWrapper unifyResponseWrapper = new UnifyResponseWrapper(unifyRequestWrapper, response);
+        if (asyncSessionRepository != null) {
+            unifyRequestWrapper.startLoading();
+        }
         try {
             filterChain.doFilter(unifyRequestWrapper, unifyResponseWrapper);
         } finally {
-            unifyRequestWrapper.commitSession();
+            try {
+                unifyRequestWrapper.commitSession();
+            } finally {
+                unifyRequestWrapper.cancelLoading();
+            }
+        }
+    }
+
+    /**
+     * 把Ant风格的路径合并成一个正则表达式，**匹配任意多级路径，*和?不匹配'/'
+     *
+     * @return 没有路径时返回null
+     */
+    private static Pattern compilePaths(List<String> paths) {
+        if (paths == null || paths.isEmpty()) {
+            return null;
+        }
+        StringBuilder regex = new StringBuilder();
+        for (String path : paths) {
+            if (regex.length() > 0) {
+                regex.append('|');
+            }
+            regex.append("(?:");
+            for (int i = 0; i < path.length(); i++) {
+                char c = path.charAt(i);
+                if (c == '/' && path.startsWith("**", i + 1) && (i + 3 == path.length() || path.charAt(i + 3) == '/')) {
+                    //"/**"也匹配没有子路径的情况
+                    regex.append("(?:/.*)?");
+                    i += 2;
+                } else if (c == '*' && path.startsWith("*", i + 1)) {
+                    regex.append(".*");
+                    i++;
+                } else if (c == '*') {
+                    regex.append("[^/]*");
+                } else if (c == '?') {
+                    regex.append("[^/]");
+                } else {
+                    if ("\\.[]{}()+-^$|".indexOf(c) >= 0) {
+                        regex.append('\\');
+                    }
+                    regex.append(c);
+                }
+            }
+            regex.append(')');
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    /**
+     * 不使用session的请求的包装器，屏蔽容器提供的session。
+     * getSession(true)返回一个只在本次请求中有效的临时session，不保存到仓库也不下发给客户端
+     */
+    private final class SessionFreeRequestWrapper extends HttpServletRequestWrapper {
+        private HttpSessionAdapter<MSession> temporarySession;
+
+        private SessionFreeRequestWrapper(HttpServletRequest request) {
+            super(request);
+        }
+
+        @Override
+        public HttpSession getSession(boolean create) {
+            if (this.temporarySession == null && create) {
+                logger.debug("路径" + getRequestURI() + "被配置为不使用session，创建不保存的临时session");
+                this.temporarySession = new HttpSessionAdapter<MSession>(new MSession(), getServletContext()) {
+                    @Override
+                    public void invalidate() {
+                        super.invalidate();
+                        temporarySession = null;
+                    }
+                };
+            }
+            return this.temporarySession;
+        }
+
+        @Override
+        public HttpSession getSession() {
+            return getSession(true);
+        }
+
+        @Override
+        public boolean isRequestedSessionIdValid() {
+            return false;
+        }
+
+        @Override
+        public String changeSessionId() {
+            if (this.temporarySession == null) {
+                throw new IllegalStateException("当前请求没有session");
+            }
+            return this.temporarySession.getSession().changeSessionId();
         }
     }
 
@@ -74,15 +218,28 @@ public class UnifySessionFilter<S extends Session> extends OncePerRequestFilter
         private boolean requestedSessionInvalidated;
         //标记session是否在类内缓存
         private boolean requestedSessionCached;
-        //标记客户端发过来的sessionId
+        //标记客户端发过来的sessionId，在整个请求中不变，session的id改变或失效后仍然保留
         private String requestedSessionId;
         //缓存的session
         private S requestedSession;
+        //正在异步加载的session及其id，只使用一次
+        private String loadingSessionId;
+        private CompletableFuture<S> loadingSession;
         private final HttpServletResponse response;
+        //只读的请求不保存session
+        private final boolean readOnly;
+        //本次请求中最后一次提交的session及其版本，没有变化时再次提交不需要保存
+        private S committedSession;
+        private long committedVersion;
 
         public UnifyRequestWrapper(HttpServletRequest request, HttpServletResponse response) {
+            this(request, response, false);
+        }
+
+        public UnifyRequestWrapper(HttpServletRequest request, HttpServletResponse response, boolean readOnly) {
             super(request);
             this.response = response;
+            this.readOnly = readOnly;
         }
 
         @Override
@@ -162,18 +319,60 @@ public class UnifySessionFilter<S extends Session> extends OncePerRequestFilter
             return this.requestedSessionIdValid;
         }
 
-        private boolean isInvalidateClientSession() {
-            return getCurrentSession() == null && this.requestedSessionInvalidated;
+        /**
+         * 开始异步加载客户端携带的第一个sessionId对应的session
+         */
+        private void startLoading() {
+            List<String> sessionIds = httpSessionIdResolver.resolveSessionIds(this);
+            if (!sessionIds.isEmpty()) {
+                this.loadingSessionId = sessionIds.get(0);
+                this.loadingSession = asyncSessionRepository.findById(this.loadingSessionId);
+            }
         }
 
+        /**
+         * 取消没有被使用的异步加载
+         */
+        private void cancelLoading() {
+            CompletableFuture<S> loading = this.loadingSession;
+            if (loading != null) {
+                this.loadingSession = null;
+                this.loadingSessionId = null;
+                loading.cancel(false);
+            }
+        }
+
+        /**
+         * 优先使用异步加载的结果，加载失败时抛出原始异常
+         */
+        private S findById(String sessionId) {
+            CompletableFuture<S> loading = this.loadingSession;
+            if (loading == null || !sessionId.equals(this.loadingSessionId)) {
+                return sessionRepository.findById(sessionId);
+            }
+            this.loadingSession = null;
+            this.loadingSessionId = null;
+            try {
+                return loading.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+
+        /**
+         * 在一次请求中只查找一次客户端携带的session，之后都使用缓存的结果
+         */
         private S getRequestedSession() {
-            /*if (!this.requestedSessionCached) {
+            if (!this.requestedSessionCached) {
                 List<String> sessionIds = httpSessionIdResolver.resolveSessionIds(this);
                 for (String sessionId : sessionIds) {
                     if (this.requestedSessionId == null) {
                         this.requestedSessionId = sessionId;
                     }
-                    S session = sessionRepository.findById(sessionId);
+                    S session = findById(sessionId);
                     if (session != null) {
                         this.requestedSession = session;
                         this.requestedSessionId = sessionId;
@@ -181,18 +380,6 @@ public class UnifySessionFilter<S extends Session> extends OncePerRequestFilter
                     }
                 }
                 this.requestedSessionCached = true;
-            }*/
-            List<String> sessionIds = httpSessionIdResolver.resolveSessionIds(this);
-            for (String sessionId : sessionIds) {
-                if (this.requestedSessionId == null) {
-                    this.requestedSessionId = sessionId;
-                }
-                S session = sessionRepository.findById(sessionId);
-                if (session != null) {
-                    this.requestedSession = session;
-                    this.requestedSessionId = sessionId;
-                    break;
-                }
             }
             return this.requestedSession;
         }
@@ -213,22 +400,33 @@ public class UnifySessionFilter<S extends Session> extends OncePerRequestFilter
             return (HttpSessionWrapper) getAttribute(CURRENT_SESSION_ATTR);
         }
 
-        private void clearRequestedSessionCache() {
-            this.requestedSessionCached = false;
+        /**
+         * 客户端携带的session已经被删除，之后不再到仓库中查找。
+         * requestedSessionId保持不变，提交时据此判断是否需要下发新的sessionId
+         */
+        private void invalidateRequestedSession() {
+            this.requestedSessionCached = true;
             this.requestedSession = null;
-            this.requestedSessionId = null;
+            this.requestedSessionIdValid = false;
         }
 
         private void commitSession() {
             HttpSessionWrapper currentSession = getCurrentSession();
-            if (currentSession == null) {
-                if (isInvalidateClientSession()) {
+            if (currentSession == null || currentSession.isTransient() || this.readOnly) {
+                //没有保存过的session和只读请求中的session不写入仓库，也不下发给客户端
+                if (this.requestedSessionInvalidated) {
                     httpSessionIdResolver.expireSession(this, this.response);
                 }
             } else {
                 S session = currentSession.getSession();
-                clearRequestedSessionCache();
+                //include和提交响应都会触发提交，session在上次提交之后没有变化时跳过
+                if (session == this.committedSession && session.getVersion() == this.committedVersion) {
+                    return;
+                }
+                long version = session.getVersion();
                 sessionRepository.save(session);
+                this.committedSession = session;
+                this.committedVersion = version;
                 String sessionId = session.getId();
                 //没有必要在每个响应中都设置sessionId，只在最初的一个响应中设置即可
                 if (!isRequestedSessionIdValid() || !sessionId.equals(getRequestedSessionId())) {
@@ -243,12 +441,33 @@ public class UnifySessionFilter<S extends Session> extends OncePerRequestFilter
          * ':'作为UnifySession的保留字符，在session中的属性名中不能使用
          */
         public final class HttpSessionWrapper extends HttpSessionAdapter<S> {
-            private final ObjectMapper objectMapper = new ObjectMapper();
+            private final ShareAttributeCodec shareAttributeCodec = ShareAttributeCodec.getDefault();
+            //本次请求中已经解析过的共享属性，避免重复解析同一段JSON
+            private final Map<String, Object> decodedShareAttributes = new HashMap<>();
+            //本次请求中批量读取的其他项目的共享属性JSON，值为null表示属性不存在
+            private final Map<String, Map<String, String>> fetchedShareAttributes = new HashMap<>();
+            //是否需要保存，新创建的session在设置属性或调用markRequired之后才保存
+            private boolean required;
 
             HttpSessionWrapper(S session, ServletContext servletContext) {
                 super(session, servletContext);
             }
 
+            /**
+             * 标记新创建的session需要保存并下发给客户端，即使没有设置任何属性
+             */
+            public void markRequired() {
+                this.required = true;
+            }
+
+            /**
+             * 是否是本次请求新创建、没有任何属性、也没有被标记为需要保存的session，这样的session不保存
+             */
+            boolean isTransient() {
+                return properties.getLazyCreate() != null && properties.getLazyCreate()
+                        && !this.required && isNew() && getSession().getAttributeNames().isEmpty();
+            }
+
             /**
              * 获取其他项目的共享session属性
              *
@@ -259,17 +478,97 @@ public class UnifySessionFilter<S extends Session> extends OncePerRequestFilter
             public <T> T getShareAttribute(String projectName, String name, TypeReference<T> typeReference) throws IOException {
                 String attrName = RedisSessionRepository.PUBLIC + name;
                 Object val = super.getAttribute(attrName);
-                if (val != null) {
-                    if (val instanceof ShareAttribute) {
-                        return (T) val;
-                    } else {
-                        return objectMapper.readValue((String) val, typeReference);
+                if (val instanceof ShareAttribute) {
+                    return (T) val;
+                }
+                String cacheKey = projectName + attrName + "|" + typeReference.getType().getTypeName();
+                if (this.decodedShareAttributes.containsKey(cacheKey)) {
+                    return (T) this.decodedShareAttributes.get(cacheKey);
+                }
+                if (val == null) {
+                    val = findShareAttribute(projectName, name);
+                }
+                T result = val != null ? shareAttributeCodec.decode((String) val, typeReference) : null;
+                this.decodedShareAttributes.put(cacheKey, result);
+                return result;
+            }
+
+            /**
+             * 一次读取多个项目的同名共享属性
+             *
+             * @param projectNames 项目名
+             * @param name         属性名
+             * @return 项目名到属性值的映射，不存在的属性不包含在结果中
+             */
+            public <T> Map<String, T> getShareAttributes(Collection<String> projectNames, String name, TypeReference<T> typeReference) throws IOException {
+                Map<String, Collection<String>> attributeNames = new HashMap<>();
+                for (String projectName : projectNames) {
+                    attributeNames.put(projectName, Collections.singleton(name));
+                }
+                prefetchShareAttributes(attributeNames);
+                Map<String, T> result = new HashMap<>();
+                for (String projectName : projectNames) {
+                    T val = getShareAttribute(projectName, name, typeReference);
+                    if (val != null) {
+                        result.put(projectName, val);
                     }
                 }
-                String sessionId = getId();
-                S session = sessionRepository.findById(sessionId, projectName);
-                Object attribute = session.getAttribute(RedisSessionRepository.PUBLIC + name);
-                return attribute != null ? objectMapper.readValue((String) attribute, typeReference) : null;
+                return result;
+            }
+
+            /**
+             * 用一次往返预读多个项目的共享属性，之后的{@link #getShareAttribute(String, String, TypeReference)}不再访问仓库
+             *
+             * @param attributeNames 项目名到属性名的映射
+             */
+            public void prefetchShareAttributes(Map<String, ? extends Collection<String>> attributeNames) {
+                Map<String, Collection<String>> missing = new HashMap<>();
+                for (Map.Entry<String, ? extends Collection<String>> e : attributeNames.entrySet()) {
+                    if (getPrefetchedShareAttributes(e.getKey()) != null) {
+                        continue;
+                    }
+                    Map<String, String> fetched = this.fetchedShareAttributes.get(e.getKey());
+                    for (String name : e.getValue()) {
+                        if (fetched == null || !fetched.containsKey(name)) {
+                            missing.computeIfAbsent(e.getKey(), k -> new ArrayList<>()).add(name);
+                        }
+                    }
+                }
+                if (missing.isEmpty()) {
+                    return;
+                }
+                Map<String, Map<String, String>> result = sessionRepository.findShareAttributes(getId(), missing);
+                for (Map.Entry<String, Collection<String>> e : missing.entrySet()) {
+                    Map<String, String> values = result.getOrDefault(e.getKey(), Collections.emptyMap());
+                    Map<String, String> fetched = this.fetchedShareAttributes.computeIfAbsent(e.getKey(), k -> new HashMap<>());
+                    for (String name : e.getValue()) {
+                        fetched.put(name, values.get(name));
+                    }
+                }
+            }
+
+            /**
+             * 依次从加载时预读的、本次请求批量读取的共享属性中查找，都没有时再访问仓库
+             */
+            private String findShareAttribute(String projectName, String name) {
+                Map<String, String> prefetched = getPrefetchedShareAttributes(projectName);
+                if (prefetched != null) {
+                    return prefetched.get(name);
+                }
+                Map<String, String> fetched = this.fetchedShareAttributes.get(projectName);
+                if (fetched == null || !fetched.containsKey(name)) {
+                    prefetchShareAttributes(Collections.singletonMap(projectName, Collections.singleton(name)));
+                    fetched = this.fetchedShareAttributes.get(projectName);
+                }
+                return fetched.get(name);
+            }
+
+            private Map<String, String> getPrefetchedShareAttributes(String projectName) {
+                S session = getSession();
+                if (session instanceof RedisSession) {
+                    return ((RedisSession) session).getPrefetchedShareAttributes(projectName);
+                }
+                return null;
             }
 
             /**
@@ -289,11 +588,20 @@ public class UnifySessionFilter<S extends Session> extends OncePerRequestFilter
              */
             public void setShareAttribute(String name, ShareAttribute value) {
                 super.setAttribute(RedisSessionRepository.PUBLIC + name, value);
+                this.decodedShareAttributes.clear();
+                flushIfImmediate();
             }
 
             @Override
             public void setAttribute(String name, Object value) {
                 super.setAttribute(RedisSessionRepository.PRIVATE + name, value);
+                flushIfImmediate();
+            }
+
+            @Override
+            public void removeAttribute(String name) {
+                super.removeAttribute(RedisSessionRepository.PRIVATE + name);
+                flushIfImmediate();
             }
 
             @Override
@@ -303,11 +611,22 @@ public class UnifySessionFilter<S extends Session> extends OncePerRequestFilter
 
             @Override
             public void invalidate() {
+                boolean saved = !isTransient();
                 super.invalidate();
-                requestedSessionInvalidated = true;
                 setCurrentSession(null);
-                clearRequestedSessionCache();
-                sessionRepository.deleteById(getId());
+                if (saved) {
+                    requestedSessionInvalidated = true;
+                    invalidateRequestedSession();
+                    sessionRepository.deleteById(getId());
+                }
+            }
+
+            private void flushIfImmediate() {
+                if (UnifySessionProperties.FLUSH_IMMEDIATE.equals(properties.getFlushMode()) && !readOnly && !isTransient()) {
+                    sessionRepository.save(getSession());
+                    //已经写入仓库，之后即使属性被全部移除也要保存
+                    this.required = true;
+                }
             }
         }
 
@@ -0,0 +1,79 @@
+package net.gvsun.session;
+
+import net.gvsun.session.codec.CompressionStats;
+import net.gvsun.session.repository.SessionEvictionPolicy;
+import net.gvsun.session.repository.SessionNearCache;
+import net.gvsun.session.repository.SingleFlightSessionRepository;
+import net.gvsun.session.repository.WriteBehindSessionRepository;
+
+import java.util.List;
+
+/**
+ * UnifySession各组件的统计信息，注册为bean，应用注入后可以读取或导出到监控系统。
+ * 没有启用的组件对应的getter返回null
+ *
+ * @author 陈敬
+ * @since 1.1.4-SNAPSHOT
+ */
+public class UnifySessionMetrics {
+    private SessionNearCache nearCache;
+    private WriteBehindSessionRepository<?> writeBehind;
+    private CompressionStats compressionStats;
+    private List<SessionEvictionPolicy> evictionPolicies;
+    private SingleFlightSessionRepository<?> singleFlight;
+
+    /**
+     * Redis仓库的本地缓存，命中、未命中、淘汰和失效的次数
+     */
+    public SessionNearCache getNearCache() {
+        return nearCache;
+    }
+
+    public void setNearCache(SessionNearCache nearCache) {
+        this.nearCache = nearCache;
+    }
+
+    /**
+     * 异步写入的队列深度、合并、写入、失败、重试和放弃的次数以及写入延迟
+     */
+    public WriteBehindSessionRepository<?> getWriteBehind() {
+        return writeBehind;
+    }
+
+    public void setWriteBehind(WriteBehindSessionRepository<?> writeBehind) {
+        this.writeBehind = writeBehind;
+    }
+
+    /**
+     * 私有属性压缩的次数、字节数和CPU时间
+     */
+    public CompressionStats getCompressionStats() {
+        return compressionStats;
+    }
+
+    public void setCompressionStats(CompressionStats compressionStats) {
+        this.compressionStats = compressionStats;
+    }
+
+    /**
+     * 内存仓库各分段的淘汰策略，命中、未命中、淘汰和拒绝的次数，没有限制容量时为null
+     */
+    public List<SessionEvictionPolicy> getEvictionPolicies() {
+        return evictionPolicies;
+    }
+
+    public void setEvictionPolicies(List<SessionEvictionPolicy> evictionPolicies) {
+        this.evictionPolicies = evictionPolicies;
+    }
+
+    /**
+     * 合并并发查找时访问Redis的次数和使用其他请求查找结果的次数
+     */
+    public SingleFlightSessionRepository<?> getSingleFlight() {
+        return singleFlight;
+    }
+
+    public void setSingleFlight(SingleFlightSessionRepository<?> singleFlight) {
+        this.singleFlight = singleFlight;
+    }
+}
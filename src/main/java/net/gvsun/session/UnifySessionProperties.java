@@ -2,6 +2,9 @@ package net.gvsun.session;
 
 import org.springframework.boot.context.properties.ConfigurationProperties;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * 配置类
  *
@@ -12,6 +15,18 @@ import org.springframework.boot.context.properties.ConfigurationProperties;
 public class UnifySessionProperties {
     public static final String REDIS_REPOSITORY = "REDIS_REPOSITORY";
     public static final String MEMORY_REPOSITORY = "MEMORY_REPOSITORY";
+    public static final String OFF_HEAP_REPOSITORY = "OFF_HEAP_REPOSITORY";
+    public static final String MAPPED_FILE_REPOSITORY = "MAPPED_FILE_REPOSITORY";
+    public static final String CODEC_JDK = "JDK";
+    public static final String CODEC_COMPACT = "COMPACT";
+    public static final String FLUSH_ON_SAVE = "ON_SAVE";
+    public static final String FLUSH_IMMEDIATE = "IMMEDIATE";
+    public static final String REDIS_STANDALONE = "STANDALONE";
+    public static final String REDIS_SENTINEL = "SENTINEL";
+    public static final String REDIS_CLUSTER = "CLUSTER";
+    public static final String EVICTION_LRU = "LRU";
+    public static final String EVICTION_TINY_LFU = "TINY_LFU";
+    public static final String DEFAULT_INVALIDATION_CHANNEL = "usession:invalidation";
 
     /**
      * 项目名，强烈建议和多数据源里配置的项目名一致，不然你是在给自己制造麻烦
@@ -28,8 +43,106 @@ public class UnifySessionProperties {
      */
     private Integer maxInactiveInterval = 1800;
 
+    /**
+     * session属性的刷新时机，ON_SAVE在请求结束提交session时写入，IMMEDIATE在每次设置或移除属性时立即写入。
+     * 只有通过setAttribute设置过的属性才会被写入，修改了属性对象的内部状态后需要重新调用setAttribute
+     */
+    private String flushMode = FLUSH_ON_SAVE;
+
+    /**
+     * 开启后新创建的session在设置属性或调用markRequired之前不保存到仓库，也不下发给客户端，
+     * 只调用getSession()读取属性的请求（例如爬虫、健康检查）不会产生任何写入。
+     * 开启后RedisSessionRepository在session第一次保存时才发布SessionCreatedEvent，关闭时在创建session时发布。
+     * 默认关闭，开启后依赖空session的sessionId的代码（例如只调用getSession()来下发cookie）需要改为调用markRequired
+     */
+    private Boolean lazyCreate = false;
+
+    /**
+     * 不使用session的路径（应用内路径，不含contextPath和;jsessionid等路径参数），支持Ant风格的?、*和**，例如/static/**、/actuator/**。
+     * 这些请求不解析cookie也不访问仓库，getSession(false)返回null，getSession(true)返回只在本次请求中有效的临时session，
+     * 临时session不保存也不下发给客户端
+     */
+    private List<String> sessionFreePaths = new ArrayList<>();
+
+    /**
+     * 只读取session的路径，格式同sessionFreePaths。这些请求照常加载session，但不保存也不刷新访问时间，
+     * 请求中对属性的修改会被丢弃
+     */
+    private List<String> readOnlyPaths = new ArrayList<>();
+
     private Redis redis;
 
+    /**
+     * 异步写入session的配置
+     */
+    private WriteBehind writeBehind = new WriteBehind();
+
+    /**
+     * 异步加载session的配置
+     */
+    private AsyncLoad asyncLoad = new AsyncLoad();
+
+    /**
+     * 内存仓库的配置
+     */
+    private Memory memory = new Memory();
+
+    public Memory getMemory() {
+        return memory;
+    }
+
+    public void setMemory(Memory memory) {
+        this.memory = memory;
+    }
+
+    public AsyncLoad getAsyncLoad() {
+        return asyncLoad;
+    }
+
+    public void setAsyncLoad(AsyncLoad asyncLoad) {
+        this.asyncLoad = asyncLoad;
+    }
+
+    public WriteBehind getWriteBehind() {
+        return writeBehind;
+    }
+
+    public void setWriteBehind(WriteBehind writeBehind) {
+        this.writeBehind = writeBehind;
+    }
+
+    public List<String> getSessionFreePaths() {
+        return sessionFreePaths;
+    }
+
+    public void setSessionFreePaths(List<String> sessionFreePaths) {
+        this.sessionFreePaths = sessionFreePaths;
+    }
+
+    public List<String> getReadOnlyPaths() {
+        return readOnlyPaths;
+    }
+
+    public void setReadOnlyPaths(List<String> readOnlyPaths) {
+        this.readOnlyPaths = readOnlyPaths;
+    }
+
+    public Boolean getLazyCreate() {
+        return lazyCreate;
+    }
+
+    public void setLazyCreate(Boolean lazyCreate) {
+        this.lazyCreate = lazyCreate;
+    }
+
+    public String getFlushMode() {
+        return flushMode;
+    }
+
+    public void setFlushMode(String flushMode) {
+        this.flushMode = flushMode;
+    }
+
     public Integer getMaxInactiveInterval() {
         return maxInactiveInterval;
     }
@@ -67,11 +180,46 @@ public class UnifySessionProperties {
         return "UnifySessionProperties{" +
                 "projectName='" + projectName + '\'' +
                 ", repositoryType='" + repositoryType + '\'' +
+                ", flushMode='" + flushMode + '\'' +
+                ", lazyCreate=" + lazyCreate +
+                ", sessionFreePaths=" + sessionFreePaths +
+                ", readOnlyPaths=" + readOnlyPaths +
                 ", redis=" + redis +
+                ", memory=" + memory +
+                ", writeBehind=" + writeBehind +
+                ", asyncLoad=" + asyncLoad +
                 '}';
     }
 
     public static class Redis {
+        /**
+         * redis的部署方式，STANDALONE、SENTINEL或CLUSTER。
+         * CLUSTER模式下一个session的命令发送到它的slot所在的节点，保存仍然是一次往返的MULTI/EXEC事务；
+         * 修改sessionId时新旧key在不同的slot，这次保存的命令逐条执行，不是原子的
+         */
+        private String mode = REDIS_STANDALONE;
+
+        /**
+         * SENTINEL模式下哨兵的地址，CLUSTER模式下集群节点的地址，格式为host:port
+         */
+        private List<String> nodes = new ArrayList<>();
+
+        /**
+         * SENTINEL模式下主节点的名称
+         */
+        private String master;
+
+        /**
+         * CLUSTER模式下命令重定向的最大次数
+         */
+        private Integer maxRedirects = 5;
+
+        /**
+         * 是否使用{sessionId}形式的key，使一个session的所有key落在同一个slot。CLUSTER模式下总是开启。
+         * 开启前后写入的session互不可见，共享同一个Redis的服务需要保持一致
+         */
+        private boolean hashTaggedKeys = false;
+
         /**
          * redis的地址
          */
@@ -92,6 +240,158 @@ public class UnifySessionProperties {
          */
         private Integer database = 2;
 
+        /**
+         * 私有属性的编解码器，JDK、COMPACT或者实现了AttributeCodec的类的全限定名。
+         * 各编解码器都能读取JDK格式的数据，但旧版本只能读取JDK格式，共享同一个Redis的服务全部升级之后再切换
+         */
+        private String attributeCodec = CODEC_JDK;
+
+        /**
+         * 私有属性编码后不小于该字节数时用Deflate压缩保存，不大于0时不压缩。
+         * 旧版本无法读取压缩的数据，共享同一个Redis的服务全部升级之后再开启
+         */
+        private Integer compressThreshold = 0;
+
+        /**
+         * 请求只更新了最后访问时间时，如果距上次写入的时间不超过maxInactiveInterval乘以该比例，则不写入Redis。
+         * 例如0.1表示30分钟的session最多每3分钟写入一次，session可能因此提前这么长时间过期。为0时每次都写入
+         */
+        private Double touchThreshold = 0D;
+
+        /**
+         * 加载session时预读共享属性的项目名，所有项目的共享属性用一次往返读取，私有属性不会传输，
+         * 适合每个请求都要读取这些项目共享属性的服务
+         */
+        private List<String> sharePrefetchProjects = new ArrayList<>();
+
+        /**
+         * 是否按需加载session属性，开启后每次请求只读取session的元数据，属性在第一次读取时才从Redis中读取。
+         * 启用本地缓存时该配置不生效
+         */
+        private boolean lazyLoad = false;
+
+        /**
+         * 是否合并本节点上对同一个session的并发查找，同时到达的请求只有一个访问Redis，其余的使用它的结果。
+         * 按需加载属性时该配置不生效
+         */
+        private boolean singleFlight = false;
+
+        /**
+         * 发布session失效通知的频道，各节点据此丢弃本地缓存。为空时只有启用了本地缓存的节点
+         * 使用默认频道usession:invalidation，其他节点不发布。部分节点启用本地缓存时，
+         * 其余节点也需要配置该频道，否则它们的修改不会通知到启用了本地缓存的节点
+         */
+        private String invalidationChannel;
+
+        /**
+         * 本地缓存的配置
+         */
+        private NearCache nearCache = new NearCache();
+
+        public String getMode() {
+            return mode;
+        }
+
+        public void setMode(String mode) {
+            this.mode = mode;
+        }
+
+        public List<String> getNodes() {
+            return nodes;
+        }
+
+        public void setNodes(List<String> nodes) {
+            this.nodes = nodes;
+        }
+
+        public String getMaster() {
+            return master;
+        }
+
+        public void setMaster(String master) {
+            this.master = master;
+        }
+
+        public Integer getMaxRedirects() {
+            return maxRedirects;
+        }
+
+        public void setMaxRedirects(Integer maxRedirects) {
+            this.maxRedirects = maxRedirects;
+        }
+
+        public boolean isHashTaggedKeys() {
+            return hashTaggedKeys;
+        }
+
+        public void setHashTaggedKeys(boolean hashTaggedKeys) {
+            this.hashTaggedKeys = hashTaggedKeys;
+        }
+
+        public String getAttributeCodec() {
+            return attributeCodec;
+        }
+
+        public void setAttributeCodec(String attributeCodec) {
+            this.attributeCodec = attributeCodec;
+        }
+
+        public Integer getCompressThreshold() {
+            return compressThreshold;
+        }
+
+        public void setCompressThreshold(Integer compressThreshold) {
+            this.compressThreshold = compressThreshold;
+        }
+
+        public Double getTouchThreshold() {
+            return touchThreshold;
+        }
+
+        public void setTouchThreshold(Double touchThreshold) {
+            this.touchThreshold = touchThreshold;
+        }
+
+        public List<String> getSharePrefetchProjects() {
+            return sharePrefetchProjects;
+        }
+
+        public void setSharePrefetchProjects(List<String> sharePrefetchProjects) {
+            this.sharePrefetchProjects = sharePrefetchProjects;
+        }
+
+        public boolean isLazyLoad() {
+            return lazyLoad;
+        }
+
+        public void setLazyLoad(boolean lazyLoad) {
+            this.lazyLoad = lazyLoad;
+        }
+
+        public boolean isSingleFlight() {
+            return singleFlight;
+        }
+
+        public void setSingleFlight(boolean singleFlight) {
+            this.singleFlight = singleFlight;
+        }
+
+        public String getInvalidationChannel() {
+            return invalidationChannel;
+        }
+
+        public void setInvalidationChannel(String invalidationChannel) {
+            this.invalidationChannel = invalidationChannel;
+        }
+
+        public NearCache getNearCache() {
+            return nearCache;
+        }
+
+        public void setNearCache(NearCache nearCache) {
+            this.nearCache = nearCache;
+        }
+
         public String getHost() {
             return host;
         }
@@ -127,10 +427,326 @@ public class UnifySessionProperties {
         @Override
         public String toString() {
             return "Redis{" +
-                    "host='" + host + '\'' +
+                    "mode='" + mode + '\'' +
+                    ", nodes=" + nodes +
+                    ", master='" + master + '\'' +
+                    ", maxRedirects=" + maxRedirects +
+                    ", hashTaggedKeys=" + hashTaggedKeys +
+                    ", host='" + host + '\'' +
                     ", port=" + port +
                     ", password='" + "******" + '\'' +
                     ", database=" + database +
+                    ", attributeCodec='" + attributeCodec + '\'' +
+                    ", compressThreshold=" + compressThreshold +
+                    ", touchThreshold=" + touchThreshold +
+                    ", sharePrefetchProjects=" + sharePrefetchProjects +
+                    ", lazyLoad=" + lazyLoad +
+                    ", singleFlight=" + singleFlight +
+                    ", invalidationChannel='" + invalidationChannel + '\'' +
+                    ", nearCache=" + nearCache +
+                    '}';
+        }
+    }
+
+    public static class NearCache {
+        /**
+         * 是否在Redis之前启用本地session缓存
+         */
+        private boolean enabled = false;
+
+        /**
+         * 最多缓存的条目数，每个sessionId和项目名的组合为一个条目
+         */
+        private Integer maxEntries = 10000;
+
+        /**
+         * 缓存的session序列化后最多占用的字节数
+         */
+        private Long maxBytes = 64L * 1024 * 1024;
+
+        /**
+         * 条目的存活时间，以毫秒为单位
+         */
+        private Long ttl = 5000L;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public Integer getMaxEntries() {
+            return maxEntries;
+        }
+
+        public void setMaxEntries(Integer maxEntries) {
+            this.maxEntries = maxEntries;
+        }
+
+        public Long getMaxBytes() {
+            return maxBytes;
+        }
+
+        public void setMaxBytes(Long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        public Long getTtl() {
+            return ttl;
+        }
+
+        public void setTtl(Long ttl) {
+            this.ttl = ttl;
+        }
+
+        @Override
+        public String toString() {
+            return "NearCache{" +
+                    "enabled=" + enabled +
+                    ", maxEntries=" + maxEntries +
+                    ", maxBytes=" + maxBytes +
+                    ", ttl=" + ttl +
+                    '}';
+        }
+    }
+
+    public static class Memory {
+        /**
+         * 后台清理过期session的间隔，以毫秒为单位，不大于0时只在读取时清理
+         */
+        private Long cleanupInterval = 60000L;
+
+        /**
+         * 最多保存的session数，不大于0时不限制
+         */
+        private Integer maxSessions = 0;
+
+        /**
+         * 估算的session总字节数上限，不大于0时不限制
+         */
+        private Long maxBytes = 0L;
+
+        /**
+         * 超出容量时的淘汰策略，LRU或TINY_LFU。TINY_LFU会优先保留访问频繁的session，
+         * 大量只访问一次的session不会挤走活跃用户
+         */
+        private String evictionPolicy = EVICTION_TINY_LFU;
+
+        /**
+         * MEMORY_REPOSITORY按sessionId分成的段数，每段单独清理过期session和计算容量，
+         * maxSessions和maxBytes平均分给各段。OFF_HEAP_REPOSITORY按该值分片，每片有自己的锁，
+         * maxOffHeapBytes平均分给各片。不大于1时不分段
+         */
+        private Integer segments = 0;
+
+        /**
+         * OFF_HEAP_REPOSITORY每次申请的直接内存的字节数，单个session序列化后不能超过该大小
+         */
+        private Integer slabSize = 16 * 1024 * 1024;
+
+        /**
+         * OFF_HEAP_REPOSITORY最多使用的直接内存的字节数，还需要保证不超过JVM的-XX:MaxDirectMemorySize
+         */
+        private Long maxOffHeapBytes = 1024L * 1024 * 1024;
+
+        /**
+         * MAPPED_FILE_REPOSITORY保存session的文件，同一个文件只能由一个进程使用
+         */
+        private String file = "usession/sessions.dat";
+
+        /**
+         * MAPPED_FILE_REPOSITORY文件的字节数，有效的session总大小不能超过该值
+         */
+        private Integer fileSize = 256 * 1024 * 1024;
+
+        public Integer getSegments() {
+            return segments;
+        }
+
+        public void setSegments(Integer segments) {
+            this.segments = segments;
+        }
+
+        public String getFile() {
+            return file;
+        }
+
+        public void setFile(String file) {
+            this.file = file;
+        }
+
+        public Integer getFileSize() {
+            return fileSize;
+        }
+
+        public void setFileSize(Integer fileSize) {
+            this.fileSize = fileSize;
+        }
+
+        public Integer getSlabSize() {
+            return slabSize;
+        }
+
+        public void setSlabSize(Integer slabSize) {
+            this.slabSize = slabSize;
+        }
+
+        public Long getMaxOffHeapBytes() {
+            return maxOffHeapBytes;
+        }
+
+        public void setMaxOffHeapBytes(Long maxOffHeapBytes) {
+            this.maxOffHeapBytes = maxOffHeapBytes;
+        }
+
+        public Integer getMaxSessions() {
+            return maxSessions;
+        }
+
+        public void setMaxSessions(Integer maxSessions) {
+            this.maxSessions = maxSessions;
+        }
+
+        public Long getMaxBytes() {
+            return maxBytes;
+        }
+
+        public void setMaxBytes(Long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        public String getEvictionPolicy() {
+            return evictionPolicy;
+        }
+
+        public void setEvictionPolicy(String evictionPolicy) {
+            this.evictionPolicy = evictionPolicy;
+        }
+
+        public Long getCleanupInterval() {
+            return cleanupInterval;
+        }
+
+        public void setCleanupInterval(Long cleanupInterval) {
+            this.cleanupInterval = cleanupInterval;
+        }
+
+        @Override
+        public String toString() {
+            return "Memory{" +
+                    "cleanupInterval=" + cleanupInterval +
+                    ", maxSessions=" + maxSessions +
+                    ", maxBytes=" + maxBytes +
+                    ", evictionPolicy='" + evictionPolicy + '\'' +
+                    ", segments=" + segments +
+                    ", slabSize=" + slabSize +
+                    ", maxOffHeapBytes=" + maxOffHeapBytes +
+                    ", file='" + file + '\'' +
+                    ", fileSize=" + fileSize +
+                    '}';
+        }
+    }
+
+    public static class WriteBehind {
+        /**
+         * 是否在后台线程中保存session，请求结束时不再等待保存完成。
+         * 其他节点可能在短时间内读到旧的session
+         */
+        private boolean enabled = false;
+
+        /**
+         * 等待写入的session的最大数量，队列满时改为同步保存
+         */
+        private Integer queueCapacity = 10000;
+
+        /**
+         * 执行写入的后台线程数
+         */
+        private Integer threads = 2;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public Integer getQueueCapacity() {
+            return queueCapacity;
+        }
+
+        public void setQueueCapacity(Integer queueCapacity) {
+            this.queueCapacity = queueCapacity;
+        }
+
+        public Integer getThreads() {
+            return threads;
+        }
+
+        public void setThreads(Integer threads) {
+            this.threads = threads;
+        }
+
+        @Override
+        public String toString() {
+            return "WriteBehind{" +
+                    "enabled=" + enabled +
+                    ", queueCapacity=" + queueCapacity +
+                    ", threads=" + threads +
+                    '}';
+        }
+    }
+
+    public static class AsyncLoad {
+        /**
+         * 是否在请求进入过滤器时就在后台线程中开始加载session，和过滤器链中的其他处理同时进行，
+         * 第一次访问session时再等待加载完成
+         */
+        private boolean enabled = false;
+
+        /**
+         * 执行加载的后台线程数
+         */
+        private Integer threads = 8;
+
+        /**
+         * 等待加载的请求的最大数量，队列满时由请求线程直接加载
+         */
+        private Integer queueCapacity = 1000;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public Integer getThreads() {
+            return threads;
+        }
+
+        public void setThreads(Integer threads) {
+            this.threads = threads;
+        }
+
+        public Integer getQueueCapacity() {
+            return queueCapacity;
+        }
+
+        public void setQueueCapacity(Integer queueCapacity) {
+            this.queueCapacity = queueCapacity;
+        }
+
+        @Override
+        public String toString() {
+            return "AsyncLoad{" +
+                    "enabled=" + enabled +
+                    ", threads=" + threads +
+                    ", queueCapacity=" + queueCapacity +
                     '}';
         }
     }
@@ -0,0 +1,16 @@
+package net.gvsun.session.codec;
+
+/**
+ * session私有属性的编解码器，决定属性以什么格式保存在Redis中
+ * <p>
+ * 编码结果的第一个字节用来标识格式，解码时应能识别{@link JdkAttributeCodec}、{@link CompactAttributeCodec}
+ * 和{@link CompressingAttributeCodec}写入的数据，这样切换编解码器之后已有的session仍然可以读取
+ *
+ * @author 陈敬
+ * @since 1.1.4-SNAPSHOT
+ */
+public interface AttributeCodec {
+    byte[] encode(Object value);
+
+    Object decode(byte[] bytes);
+}
@@ -0,0 +1,42 @@
+package net.gvsun.session.codec;
+
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.SerializationException;
+
+/**
+ * 把{@link AttributeCodec}适配为RedisTemplate使用的序列化器
+ *
+ * @author 陈敬
+ * @since 1.1.4-SNAPSHOT
+ */
+public class CodecRedisSerializer implements RedisSerializer<Object> {
+    private static final byte[] EMPTY_ARRAY = new byte[0];
+    private final AttributeCodec codec;
+
+    public CodecRedisSerializer(AttributeCodec codec) {
+        if (codec == null) {
+            throw new IllegalArgumentException("codec不能为null");
+        }
+        this.codec = codec;
+    }
+
+    public AttributeCodec getCodec() {
+        return this.codec;
+    }
+
+    @Override
+    public byte[] serialize(Object value) throws SerializationException {
+        if (value == null) {
+            return EMPTY_ARRAY;
+        }
+        return codec.encode(value);
+    }
+
+    @Override
+    public Object deserialize(byte[] bytes) throws SerializationException {
+        if (bytes == null || bytes.length == 0) {
+            return null;
+        }
+        return codec.decode(bytes);
+    }
+}
@@ -0,0 +1,264 @@
+package net.gvsun.session.codec;
+
+import org.springframework.data.redis.serializer.SerializationException;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * 紧凑的二进制编解码器
+ * <p>
+ * 对基本类型的包装类、字符串、byte数组以及由它们组成的常用集合直接按类型写入，
+ * 其他类型退回JDK序列化。集合只处理确切的ArrayList、LinkedList、HashSet、LinkedHashSet、
+ * HashMap、LinkedHashMap和TreeMap（自然排序），保证解码后类型不变
+ *
+ * @author 陈敬
+ * @since 1.1.4-SNAPSHOT
+ */
+public class CompactAttributeCodec implements AttributeCodec {
+    //格式标识，不能和JDK序列化流的第一个字节0xAC冲突
+    public static final byte FORMAT = 0x01;
+    private static final byte NULL = 0;
+    private static final byte TRUE = 1;
+    private static final byte FALSE = 2;
+    private static final byte BYTE = 3;
+    private static final byte SHORT = 4;
+    private static final byte INT = 5;
+    private static final byte LONG = 6;
+    private static final byte FLOAT = 7;
+    private static final byte DOUBLE = 8;
+    private static final byte CHAR = 9;
+    private static final byte STRING = 10;
+    private static final byte BYTES = 11;
+    private static final byte ARRAY_LIST = 12;
+    private static final byte LINKED_LIST = 13;
+    private static final byte HASH_SET = 14;
+    private static final byte LINKED_HASH_SET = 15;
+    private static final byte HASH_MAP = 16;
+    private static final byte LINKED_HASH_MAP = 17;
+    private static final byte TREE_MAP = 18;
+    private static final byte JDK = 127;
+    private final JdkAttributeCodec jdkCodec = new JdkAttributeCodec();
+
+    @Override
+    public byte[] encode(Object value) {
+        Output out = new Output();
+        out.write(FORMAT);
+        writeValue(out, value);
+        return out.toByteArray();
+    }
+
+    @Override
+    public Object decode(byte[] bytes) {
+        if (JdkAttributeCodec.isJdkFormat(bytes)) {
+            return jdkCodec.decode(bytes);
+        }
+        if (bytes[0] == CompressingAttributeCodec.FORMAT) {
+            return decode(CompressingAttributeCodec.inflate(bytes));
+        }
+        if (bytes[0] != FORMAT) {
+            throw new SerializationException("无法识别的属性格式:" + bytes[0]);
+        }
+        ByteBuffer in = ByteBuffer.wrap(bytes, 1, bytes.length - 1);
+        return readValue(in);
+    }
+
+    private void writeValue(Output out, Object value) {
+        if (value == null) {
+            out.write(NULL);
+            return;
+        }
+        Class<?> type = value.getClass();
+        if (type == Boolean.class) {
+            out.write((Boolean) value ? TRUE : FALSE);
+        } else if (type == Byte.class) {
+            out.write(BYTE);
+            out.write((Byte) value);
+        } else if (type == Short.class) {
+            out.write(SHORT);
+            out.writeVarLong(zigZag((Short) value));
+        } else if (type == Integer.class) {
+            out.write(INT);
+            out.writeVarLong(zigZag((Integer) value));
+        } else if (type == Long.class) {
+            out.write(LONG);
+            out.writeVarLong(zigZag((Long) value));
+        } else if (type == Float.class) {
+            out.write(FLOAT);
+            out.writeFixed(Float.floatToIntBits((Float) value), 4);
+        } else if (type == Double.class) {
+            out.write(DOUBLE);
+            out.writeFixed(Double.doubleToLongBits((Double) value), 8);
+        } else if (type == Character.class) {
+            out.write(CHAR);
+            out.writeVarLong((Character) value);
+        } else if (type == String.class) {
+            out.write(STRING);
+            out.writeLengthPrefixed(((String) value).getBytes(StandardCharsets.UTF_8));
+        } else if (type == byte[].class) {
+            out.write(BYTES);
+            out.writeLengthPrefixed((byte[]) value);
+        } else if (type == ArrayList.class || type == LinkedList.class
+                || type == HashSet.class || type == LinkedHashSet.class) {
+            out.write(collectionTag(type));
+            Collection<?> collection = (Collection<?>) value;
+            out.writeVarLong(collection.size());
+            for (Object element : collection) {
+                writeValue(out, element);
+            }
+        } else if (type == HashMap.class || type == LinkedHashMap.class
+                || (type == TreeMap.class && ((TreeMap<?, ?>) value).comparator() == null)) {
+            out.write(type == HashMap.class ? HASH_MAP : type == LinkedHashMap.class ? LINKED_HASH_MAP : TREE_MAP);
+            Map<?, ?> map = (Map<?, ?>) value;
+            out.writeVarLong(map.size());
+            for (Map.Entry<?, ?> e : map.entrySet()) {
+                writeValue(out, e.getKey());
+                writeValue(out, e.getValue());
+            }
+        } else {
+            out.write(JDK);
+            out.writeLengthPrefixed(jdkCodec.encode(value));
+        }
+    }
+
+    private Object readValue(ByteBuffer in) {
+        byte tag = in.get();
+        switch (tag) {
+            case NULL:
+                return null;
+            case TRUE:
+                return Boolean.TRUE;
+            case FALSE:
+                return Boolean.FALSE;
+            case BYTE:
+                return in.get();
+            case SHORT:
+                return (short) unZigZag(readVarLong(in));
+            case INT:
+                return (int) unZigZag(readVarLong(in));
+            case LONG:
+                return unZigZag(readVarLong(in));
+            case FLOAT:
+                return in.getFloat();
+            case DOUBLE:
+                return in.getDouble();
+            case CHAR:
+                return (char) readVarLong(in);
+            case STRING:
+                return new String(readBytes(in), StandardCharsets.UTF_8);
+            case BYTES:
+                return readBytes(in);
+            case ARRAY_LIST:
+            case LINKED_LIST:
+            case HASH_SET:
+            case LINKED_HASH_SET: {
+                int size = (int) readVarLong(in);
+                Collection<Object> collection = newCollection(tag, size);
+                for (int i = 0; i < size; i++) {
+                    collection.add(readValue(in));
+                }
+                return collection;
+            }
+            case HASH_MAP:
+            case LINKED_HASH_MAP:
+            case TREE_MAP: {
+                int size = (int) readVarLong(in);
+                Map<Object, Object> map = tag == HASH_MAP ? new HashMap<>(capacity(size))
+                        : tag == LINKED_HASH_MAP ? new LinkedHashMap<>(capacity(size)) : new TreeMap<>();
+                for (int i = 0; i < size; i++) {
+                    Object key = readValue(in);
+                    map.put(key, readValue(in));
+                }
+                return map;
+            }
+            case JDK:
+                return jdkCodec.decode(readBytes(in));
+            default:
+                throw new SerializationException("无法识别的类型标识:" + tag);
+        }
+    }
+
+    private static byte collectionTag(Class<?> type) {
+        if (type == ArrayList.class) {
+            return ARRAY_LIST;
+        } else if (type == LinkedList.class) {
+            return LINKED_LIST;
+        } else if (type == HashSet.class) {
+            return HASH_SET;
+        }
+        return LINKED_HASH_SET;
+    }
+
+    private static Collection<Object> newCollection(byte tag, int size) {
+        switch (tag) {
+            case ARRAY_LIST:
+                return new ArrayList<>(size);
+            case LINKED_LIST:
+                return new LinkedList<>();
+            case HASH_SET:
+                return new HashSet<>(capacity(size));
+            default:
+                return new LinkedHashSet<>(capacity(size));
+        }
+    }
+
+    private static int capacity(int size) {
+        return size < 3 ? size + 1 : (int) (size / 0.75f + 1);
+    }
+
+    private static byte[] readBytes(ByteBuffer in) {
+        byte[] bytes = new byte[(int) readVarLong(in)];
+        in.get(bytes);
+        return bytes;
+    }
+
+    private static long readVarLong(ByteBuffer in) {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new SerializationException("变长整数格式错误");
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * 支持变长整数和定长整数的输出流
+     */
+    private static final class Output extends ByteArrayOutputStream {
+        private Output() {
+            super(64);
+        }
+
+        private void writeVarLong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+
+        private void writeFixed(long value, int length) {
+            for (int i = length - 1; i >= 0; i--) {
+                write((int) (value >>> (i * 8)));
+            }
+        }
+
+        private void writeLengthPrefixed(byte[] bytes) {
+            writeVarLong(bytes.length);
+            write(bytes, 0, bytes.length);
+        }
+    }
+}
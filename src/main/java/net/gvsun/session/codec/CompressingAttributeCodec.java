@@ -0,0 +1,139 @@
+package net.gvsun.session.codec;
+
+import org.springframework.data.redis.serializer.SerializationException;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 压缩较大属性的编解码器，包装另一个编解码器使用
+ * <p>
+ * 编码结果不小于阈值时用Deflate压缩，压缩后的数据以{@link #FORMAT}开头，随后是4字节的原始长度；
+ * 小于阈值或压缩后没有变小的数据原样保存，不增加任何字节
+ *
+ * @author 陈敬
+ * @since 1.1.4-SNAPSHOT
+ */
+public class CompressingAttributeCodec implements AttributeCodec {
+    //格式标识，不能和JDK序列化流的0xAC以及CompactAttributeCodec的0x01冲突
+    public static final byte FORMAT = 0x02;
+    private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+    private final AttributeCodec delegate;
+    private final int threshold;
+    private final int level;
+    private final CompressionStats stats = new CompressionStats();
+
+    public CompressingAttributeCodec(AttributeCodec delegate, int threshold) {
+        this(delegate, threshold, Deflater.BEST_SPEED);
+    }
+
+    public CompressingAttributeCodec(AttributeCodec delegate, int threshold, int level) {
+        if (delegate == null) {
+            throw new IllegalArgumentException("delegate不能为null");
+        }
+        if (threshold <= 0) {
+            throw new IllegalArgumentException("threshold必须大于0");
+        }
+        this.delegate = delegate;
+        this.threshold = threshold;
+        this.level = level;
+    }
+
+    public CompressionStats getStats() {
+        return this.stats;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        byte[] raw = delegate.encode(value);
+        if (raw.length < this.threshold) {
+            return raw;
+        }
+        long start = cpuTime();
+        Deflater deflater = new Deflater(this.level);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2 + 16);
+            out.write(FORMAT);
+            out.write(raw.length >>> 24);
+            out.write(raw.length >>> 16);
+            out.write(raw.length >>> 8);
+            out.write(raw.length);
+            byte[] buffer = new byte[Math.min(raw.length, 8192)];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                out.write(buffer, 0, n);
+                if (out.size() >= raw.length) {
+                    break;
+                }
+            }
+            if (!deflater.finished()) {
+                //压缩后没有变小，原样保存
+                this.stats.recordIncompressible(cpuTime() - start);
+                return raw;
+            }
+            byte[] compressed = out.toByteArray();
+            this.stats.recordCompression(raw.length, compressed.length, cpuTime() - start);
+            return compressed;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @Override
+    public Object decode(byte[] bytes) {
+        if (bytes.length == 0 || bytes[0] != FORMAT) {
+            return delegate.decode(bytes);
+        }
+        long start = cpuTime();
+        byte[] raw = inflate(bytes);
+        this.stats.recordDecompression(cpuTime() - start);
+        return delegate.decode(raw);
+    }
+
+    /**
+     * 解压以{@link #FORMAT}开头的数据，其他编解码器也用它读取压缩过的属性
+     */
+    static byte[] inflate(byte[] bytes) {
+        if (bytes.length < 5) {
+            throw new SerializationException("压缩数据格式错误");
+        }
+        int length = ((bytes[1] & 0xFF) << 24) | ((bytes[2] & 0xFF) << 16) | ((bytes[3] & 0xFF) << 8) | (bytes[4] & 0xFF);
+        byte[] raw = new byte[length];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(bytes, 5, bytes.length - 5);
+            int n = 0;
+            while (n < length && !inflater.finished()) {
+                int read = inflater.inflate(raw, n, length - n);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += read;
+            }
+            if (n != length) {
+                throw new SerializationException("压缩数据不完整");
+            }
+        } catch (DataFormatException e) {
+            throw new SerializationException("解压失败", e);
+        } finally {
+            inflater.end();
+        }
+        return raw;
+    }
+
+    /**
+     * 当前线程的CPU时间，不支持时退回到墙上时间，以纳秒为单位
+     */
+    private static long cpuTime() {
+        if (THREAD_MX_BEAN.isCurrentThreadCpuTimeSupported()) {
+            return THREAD_MX_BEAN.getCurrentThreadCpuTime();
+        }
+        return System.nanoTime();
+    }
+}
@@ -0,0 +1,102 @@
+package net.gvsun.session.codec;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link CompressingAttributeCodec}的统计信息
+ *
+ * @author 陈敬
+ * @since 1.1.4-SNAPSHOT
+ */
+public class CompressionStats {
+    private final AtomicLong compressedCount = new AtomicLong();
+    private final AtomicLong incompressibleCount = new AtomicLong();
+    private final AtomicLong decompressedCount = new AtomicLong();
+    private final AtomicLong rawBytes = new AtomicLong();
+    private final AtomicLong compressedBytes = new AtomicLong();
+    private final AtomicLong compressTime = new AtomicLong();
+    private final AtomicLong decompressTime = new AtomicLong();
+
+    void recordCompression(long raw, long compressed, long time) {
+        this.compressedCount.incrementAndGet();
+        this.rawBytes.addAndGet(raw);
+        this.compressedBytes.addAndGet(compressed);
+        this.compressTime.addAndGet(time);
+    }
+
+    void recordIncompressible(long time) {
+        this.incompressibleCount.incrementAndGet();
+        this.compressTime.addAndGet(time);
+    }
+
+    void recordDecompression(long time) {
+        this.decompressedCount.incrementAndGet();
+        this.decompressTime.addAndGet(time);
+    }
+
+    /**
+     * 被压缩保存的属性数
+     */
+    public long getCompressedCount() {
+        return this.compressedCount.get();
+    }
+
+    /**
+     * 超过阈值但压缩后没有变小、原样保存的属性数
+     */
+    public long getIncompressibleCount() {
+        return this.incompressibleCount.get();
+    }
+
+    public long getDecompressedCount() {
+        return this.decompressedCount.get();
+    }
+
+    /**
+     * 被压缩的属性压缩前的总字节数
+     */
+    public long getRawBytes() {
+        return this.rawBytes.get();
+    }
+
+    /**
+     * 被压缩的属性压缩后的总字节数
+     */
+    public long getCompressedBytes() {
+        return this.compressedBytes.get();
+    }
+
+    /**
+     * 压缩后与压缩前的字节数之比，没有压缩过任何属性时为1
+     */
+    public double getCompressionRatio() {
+        long raw = this.rawBytes.get();
+        return raw == 0 ? 1 : (double) this.compressedBytes.get() / raw;
+    }
+
+    /**
+     * 压缩花费的CPU时间，以纳秒为单位
+     */
+    public long getCompressTime() {
+        return this.compressTime.get();
+    }
+
+    /**
+     * 解压花费的CPU时间，以纳秒为单位
+     */
+    public long getDecompressTime() {
+        return this.decompressTime.get();
+    }
+
+    @Override
+    public String toString() {
+        return "CompressionStats{" +
+                "compressedCount=" + compressedCount +
+                ", incompressibleCount=" + incompressibleCount +
+                ", decompressedCount=" + decompressedCount +
+                ", compressionRatio=" + getCompressionRatio() +
+                ", compressTime=" + compressTime +
+                ", decompressTime=" + decompressTime +
+                '}';
+    }
+}
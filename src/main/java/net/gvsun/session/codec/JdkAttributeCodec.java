@@ -0,0 +1,45 @@
+package net.gvsun.session.codec;
+
+import org.springframework.data.redis.serializer.JdkSerializationRedisSerializer;
+
+/**
+ * 使用JDK序列化的编解码器，和之前版本写入的数据完全兼容
+ * <p>
+ * 解码时也能识别{@link CompactAttributeCodec}和{@link CompressingAttributeCodec}写入的数据，
+ * 从其他编解码器切换回来时已有的session仍然可以读取
+ *
+ * @author 陈敬
+ * @since 1.1.4-SNAPSHOT
+ */
+public class JdkAttributeCodec implements AttributeCodec {
+    private final JdkSerializationRedisSerializer serializer = new JdkSerializationRedisSerializer();
+
+    /**
+     * 判断数据是否是JDK序列化的结果，JDK序列化流总是以0xACED开头
+     */
+    public static boolean isJdkFormat(byte[] bytes) {
+        return bytes != null && bytes.length >= 2 && bytes[0] == (byte) 0xAC && bytes[1] == (byte) 0xED;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        return serializer.serialize(value);
+    }
+
+    @Override
+    public Object decode(byte[] bytes) {
+        if (bytes != null && bytes.length > 0) {
+            if (bytes[0] == CompactAttributeCodec.FORMAT) {
+                return CompactCodecHolder.CODEC.decode(bytes);
+            } else if (bytes[0] == CompressingAttributeCodec.FORMAT) {
+                return decode(CompressingAttributeCodec.inflate(bytes));
+            }
+        }
+        return serializer.deserialize(bytes);
+    }
+
+    //CompactAttributeCodec持有JdkAttributeCodec，延迟创建避免构造时相互依赖
+    private static class CompactCodecHolder {
+        private static final CompactAttributeCodec CODEC = new CompactAttributeCodec();
+    }
+}
@@ -0,0 +1,56 @@
+package net.gvsun.session.codec;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 共享属性的JSON编解码器，所有请求共用一个实例
+ * <p>
+ * ObjectReader和ObjectWriter是线程安全的，按类型缓存之后不必每次都重新查找序列化器
+ *
+ * @author 陈敬
+ * @since 1.1.4-SNAPSHOT
+ */
+public class ShareAttributeCodec {
+    private static final ShareAttributeCodec DEFAULT = new ShareAttributeCodec(new ObjectMapper());
+    private final ObjectMapper objectMapper;
+    private final ConcurrentHashMap<Type, ObjectReader> readers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Class<?>, ObjectWriter> writers = new ConcurrentHashMap<>();
+
+    public ShareAttributeCodec(ObjectMapper objectMapper) {
+        if (objectMapper == null) {
+            throw new IllegalArgumentException("objectMapper不能为null");
+        }
+        this.objectMapper = objectMapper;
+    }
+
+    public static ShareAttributeCodec getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * 直接编码为UTF-8的JSON字节
+     */
+    public byte[] encode(Object value) throws JsonProcessingException {
+        return writers.computeIfAbsent(value.getClass(), objectMapper::writerFor).writeValueAsBytes(value);
+    }
+
+    public <T> T decode(String json, TypeReference<T> typeReference) throws IOException {
+        return reader(typeReference).readValue(json);
+    }
+
+    public <T> T decode(byte[] json, TypeReference<T> typeReference) throws IOException {
+        return reader(typeReference).readValue(json);
+    }
+
+    private ObjectReader reader(TypeReference<?> typeReference) {
+        return readers.computeIfAbsent(typeReference.getType(), type -> objectMapper.readerFor(objectMapper.constructType(type)));
+    }
+}
@@ -1,14 +1,25 @@
 package net.gvsun.session.config;
 
 import net.gvsun.session.UnifySessionProperties;
+import net.gvsun.session.codec.AttributeCodec;
+import net.gvsun.session.codec.CodecRedisSerializer;
+import net.gvsun.session.codec.CompactAttributeCodec;
+import net.gvsun.session.codec.CompressingAttributeCodec;
+import net.gvsun.session.codec.JdkAttributeCodec;
+import org.springframework.beans.BeanUtils;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.context.annotation.Bean;
+import org.springframework.data.redis.connection.RedisClusterConfiguration;
+import org.springframework.data.redis.connection.RedisNode;
+import org.springframework.data.redis.connection.RedisSentinelConfiguration;
 import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
 import org.springframework.data.redis.connection.jedis.JedisClientConfiguration;
 import org.springframework.data.redis.connection.jedis.JedisConnectionFactory;
 import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.serializer.JdkSerializationRedisSerializer;
 import org.springframework.data.redis.serializer.StringRedisSerializer;
+import org.springframework.util.ClassUtils;
+import org.springframework.util.StringUtils;
 import redis.clients.jedis.JedisPoolConfig;
 
 /**
@@ -23,18 +34,61 @@ public class RedisConfig {
     private JedisConnectionFactory getJedisConnectionFactory(UnifySessionProperties properties) {
         if (jedisConnectionFactory == null) {
             JedisPoolConfig jpc = new JedisPoolConfig();
-            RedisStandaloneConfiguration rdsc = new RedisStandaloneConfiguration();
-            rdsc.setHostName(properties.getRedis().getHost());
-            rdsc.setPort(properties.getRedis().getPort());
-            rdsc.setPassword(properties.getRedis().getPassword());
-            rdsc.setDatabase(properties.getRedis().getDatabase());
             JedisClientConfiguration.JedisClientConfigurationBuilder builder = JedisClientConfiguration.builder();
             JedisClientConfiguration build = builder.usePooling().poolConfig(jpc).build();
-            jedisConnectionFactory = new JedisConnectionFactory(rdsc, build);
+            UnifySessionProperties.Redis redis = properties.getRedis();
+            String mode = redis.getMode();
+            if (StringUtils.isEmpty(mode) || UnifySessionProperties.REDIS_STANDALONE.equals(mode)) {
+                RedisStandaloneConfiguration rdsc = new RedisStandaloneConfiguration();
+                rdsc.setHostName(redis.getHost());
+                rdsc.setPort(redis.getPort());
+                rdsc.setPassword(redis.getPassword());
+                rdsc.setDatabase(redis.getDatabase());
+                jedisConnectionFactory = new JedisConnectionFactory(rdsc, build);
+            } else if (UnifySessionProperties.REDIS_SENTINEL.equals(mode)) {
+                if (StringUtils.isEmpty(redis.getMaster()) || redis.getNodes().isEmpty()) {
+                    throw new IllegalArgumentException("SENTINEL模式需要配置master和nodes");
+                }
+                RedisSentinelConfiguration rsc = new RedisSentinelConfiguration();
+                rsc.master(redis.getMaster());
+                for (String node : redis.getNodes()) {
+                    rsc.addSentinel(parseNode(node));
+                }
+                rsc.setPassword(redis.getPassword());
+                rsc.setDatabase(redis.getDatabase());
+                jedisConnectionFactory = new JedisConnectionFactory(rsc, build);
+            } else if (UnifySessionProperties.REDIS_CLUSTER.equals(mode)) {
+                if (redis.getNodes().isEmpty()) {
+                    throw new IllegalArgumentException("CLUSTER模式需要配置nodes");
+                }
+                //集群只有0号数据库，database配置不生效
+                RedisClusterConfiguration rcc = new RedisClusterConfiguration();
+                for (String node : redis.getNodes()) {
+                    rcc.addClusterNode(parseNode(node));
+                }
+                rcc.setMaxRedirects(redis.getMaxRedirects());
+                rcc.setPassword(redis.getPassword());
+                jedisConnectionFactory = new JedisConnectionFactory(rcc, build);
+            } else {
+                throw new IllegalArgumentException("不支持的redis部署方式mode=" + mode);
+            }
+            jedisConnectionFactory.afterPropertiesSet();
         }
         return jedisConnectionFactory;
     }
 
+    private static RedisNode parseNode(String node) {
+        int i = node.lastIndexOf(':');
+        if (i <= 0 || i == node.length() - 1) {
+            throw new IllegalArgumentException("redis节点地址格式错误，应为host:port:" + node);
+        }
+        try {
+            return new RedisNode(node.substring(0, i).trim(), Integer.parseInt(node.substring(i + 1).trim()));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("redis节点地址格式错误，应为host:port:" + node, e);
+        }
+    }
+
     @Bean("jdkRedisTemplate")
     @Qualifier("jdkRedisTemplate")
     public RedisTemplate<String, Object> jdkRedisTemplate(UnifySessionProperties properties) {
@@ -46,12 +100,39 @@ public class RedisConfig {
         redisTemplate.setValueSerializer(new JdkSerializationRedisSerializer());
 
         redisTemplate.setHashKeySerializer(new StringRedisSerializer());
-        redisTemplate.setHashValueSerializer(new JdkSerializationRedisSerializer());
+        redisTemplate.setHashValueSerializer(new CodecRedisSerializer(createAttributeCodec(properties)));
 
         redisTemplate.afterPropertiesSet();
         return redisTemplate;
     }
 
+    private AttributeCodec createAttributeCodec(UnifySessionProperties properties) {
+        AttributeCodec codec = createBaseAttributeCodec(properties);
+        Integer compressThreshold = properties.getRedis().getCompressThreshold();
+        if (compressThreshold != null && compressThreshold > 0) {
+            codec = new CompressingAttributeCodec(codec, compressThreshold);
+        }
+        return codec;
+    }
+
+    private AttributeCodec createBaseAttributeCodec(UnifySessionProperties properties) {
+        String codec = properties.getRedis().getAttributeCodec();
+        if (StringUtils.isEmpty(codec) || UnifySessionProperties.CODEC_JDK.equals(codec)) {
+            return new JdkAttributeCodec();
+        } else if (UnifySessionProperties.CODEC_COMPACT.equals(codec)) {
+            return new CompactAttributeCodec();
+        }
+        try {
+            Class<?> type = ClassUtils.forName(codec, getClass().getClassLoader());
+            if (!AttributeCodec.class.isAssignableFrom(type)) {
+                throw new IllegalArgumentException(codec + "没有实现AttributeCodec");
+            }
+            return (AttributeCodec) BeanUtils.instantiateClass(type);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalArgumentException("未找到指定的attributeCodec=" + codec, e);
+        }
+    }
+
     @Bean("jsonRedisTemplate")
     @Qualifier("jsonRedisTemplate")
     public RedisTemplate<String, String> jsonRedisTemplate(UnifySessionProperties properties) {
@@ -2,14 +2,31 @@ package net.gvsun.session.config;
 
 import net.gvsun.session.UnifyHttpSessionListenerAdapter;
 import net.gvsun.session.UnifySessionFilter;
+import net.gvsun.session.UnifySessionMetrics;
 import net.gvsun.session.UnifySessionProperties;
+import net.gvsun.session.codec.AttributeCodec;
+import net.gvsun.session.codec.CodecRedisSerializer;
+import net.gvsun.session.codec.CompactAttributeCodec;
+import net.gvsun.session.codec.CompressingAttributeCodec;
+import net.gvsun.session.repository.ExecutorAsyncSessionRepository;
 import net.gvsun.session.repository.MSession;
 import net.gvsun.session.repository.MSessionRepository;
+import net.gvsun.session.repository.MappedFileSessionRepository;
+import net.gvsun.session.repository.OffHeapSessionRepository;
 import net.gvsun.session.repository.RedisSession;
 import net.gvsun.session.repository.RedisSessionRepository;
+import net.gvsun.session.repository.SegmentedSessionRepository;
+import net.gvsun.session.repository.SerializedSessionRepository;
+import net.gvsun.session.repository.Session;
+import net.gvsun.session.repository.SessionEvictionPolicy;
+import net.gvsun.session.repository.SessionNearCache;
+import net.gvsun.session.repository.SessionRepository;
+import net.gvsun.session.repository.SingleFlightSessionRepository;
+import net.gvsun.session.repository.WriteBehindSessionRepository;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
@@ -17,14 +34,20 @@ import org.springframework.boot.web.servlet.FilterRegistrationBean;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.ApplicationContextAware;
 import org.springframework.context.annotation.Bean;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.util.StringUtils;
 
 import javax.servlet.DispatcherType;
 import javax.servlet.Filter;
 import javax.servlet.http.HttpSessionListener;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.EnumSet;
 import java.util.List;
+import java.util.function.Function;
 
 /**
  * UnifySession的主配置类
@@ -33,22 +56,79 @@ import java.util.List;
  * @since 0.0.1-SNAPSHOT
  */
 @EnableConfigurationProperties(UnifySessionProperties.class)
-public class UnifySessionConfiguration implements ApplicationContextAware {
+public class UnifySessionConfiguration implements ApplicationContextAware, DisposableBean {
     private final static Logger logger = LoggerFactory.getLogger(UnifySessionConfiguration.class);
     public static final String FILTER_NAME = "unifySessionFilter";
     private List<HttpSessionListener> httpSessionListeners = new ArrayList<>();
     private ApplicationContext applicationContext;
+    //订阅session失效通知，只在启用本地缓存时创建
+    private RedisMessageListenerContainer listenerContainer;
+
+    @Bean
+    public UnifySessionMetrics unifySessionMetrics() {
+        return new UnifySessionMetrics();
+    }
 
     @Bean
     public FilterRegistrationBean<Filter> someFilterRegistration(
             UnifySessionProperties properties,
+            UnifySessionMetrics metrics,
             @Qualifier("jdkRedisTemplate") RedisTemplate<String, Object> jdkRedisTemplate,
             @Qualifier("jsonRedisTemplate") RedisTemplate<String, String> jsonRedisTemplate) {
         logger.info("使用UnifySession接管session的生命周期管理,配置详情{}", properties.toString());
         boolean find = false;
         FilterRegistrationBean<Filter> registration = new FilterRegistrationBean<>();
         if (properties.getRepositoryType().equals(UnifySessionProperties.MEMORY_REPOSITORY)) {
-            UnifySessionFilter<MSession> filter = new UnifySessionFilter<>(new MSessionRepository(), properties);
+            UnifySessionProperties.Memory memory = properties.getMemory();
+            int segments = memory.getSegments() != null ? memory.getSegments() : 0;
+            Long cleanupInterval = memory.getCleanupInterval();
+            boolean sweep = cleanupInterval != null && cleanupInterval > 0;
+            SessionRepository<MSession> mSessionRepository;
+            if (segments > 1) {
+                SegmentedSessionRepository segmented = new SegmentedSessionRepository(segments,
+                        () -> createMemoryRepository(memory, segments));
+                if (sweep) {
+                    segmented.startExpirySweeper(cleanupInterval, Runtime.getRuntime().availableProcessors());
+                }
+                if (!segmented.getEvictionPolicies().isEmpty()) {
+                    metrics.setEvictionPolicies(segmented.getEvictionPolicies());
+                }
+                mSessionRepository = segmented;
+            } else {
+                MSessionRepository single = createMemoryRepository(memory, 1);
+                if (sweep) {
+                    single.startExpirySweeper(cleanupInterval);
+                }
+                if (single.getEvictionPolicy() != null) {
+                    metrics.setEvictionPolicies(Collections.singletonList(single.getEvictionPolicy()));
+                }
+                mSessionRepository = single;
+            }
+            UnifySessionFilter<MSession> filter = createFilter(mSessionRepository,
+                    MSession::snapshot, properties, metrics);
+            registration.setFilter(filter);
+            find = true;
+        } else if (properties.getRepositoryType().equals(UnifySessionProperties.OFF_HEAP_REPOSITORY)) {
+            UnifySessionProperties.Memory memory = properties.getMemory();
+            int segments = memory.getSegments() != null ? memory.getSegments() : 0;
+            OffHeapSessionRepository offHeapSessionRepository = new OffHeapSessionRepository(
+                    memory.getSlabSize(),
+                    memory.getMaxOffHeapBytes(),
+                    Math.max(segments, 1),
+                    new CompactAttributeCodec());
+            configureSerialized(offHeapSessionRepository, properties);
+            UnifySessionFilter<MSession> filter = createFilter(offHeapSessionRepository,
+                    offHeapSessionRepository::snapshot, properties, metrics);
+            registration.setFilter(filter);
+            find = true;
+        } else if (properties.getRepositoryType().equals(UnifySessionProperties.MAPPED_FILE_REPOSITORY)) {
+            UnifySessionProperties.Memory memory = properties.getMemory();
+            MappedFileSessionRepository mappedFileSessionRepository = new MappedFileSessionRepository(
+                    memory.getFile(),
+                    memory.getFileSize());
+            configureSerialized(mappedFileSessionRepository, properties);
+            UnifySessionFilter<MSession> filter = createFilter(mappedFileSessionRepository,
+                    mappedFileSessionRepository::snapshot, properties, metrics);
             registration.setFilter(filter);
             find = true;
         } else if (properties.getRepositoryType().equals(UnifySessionProperties.REDIS_REPOSITORY)) {
@@ -60,9 +140,33 @@ public class UnifySessionConfiguration implements ApplicationContextAware {
             if (properties.getMaxInactiveInterval() > 0) {
                 redisSessionRepository.setDefaultMaxInactiveInterval(properties.getMaxInactiveInterval());
             }
-            UnifySessionFilter<RedisSession> filter = new UnifySessionFilter<>(
-                    redisSessionRepository,
-                    properties);
+            redisSessionRepository.setTouchThreshold(properties.getRedis().getTouchThreshold());
+            redisSessionRepository.setSharePrefetchProjects(properties.getRedis().getSharePrefetchProjects());
+            redisSessionRepository.setLazyLoad(properties.getRedis().isLazyLoad());
+            redisSessionRepository.setHashTaggedKeys(properties.getRedis().isHashTaggedKeys()
+                    || UnifySessionProperties.REDIS_CLUSTER.equals(properties.getRedis().getMode()));
+            configureNearCache(redisSessionRepository, properties, jdkRedisTemplate);
+            metrics.setNearCache(redisSessionRepository.getNearCache());
+            if (jdkRedisTemplate.getHashValueSerializer() instanceof CodecRedisSerializer) {
+                AttributeCodec codec = ((CodecRedisSerializer) jdkRedisTemplate.getHashValueSerializer()).getCodec();
+                if (codec instanceof CompressingAttributeCodec) {
+                    metrics.setCompressionStats(((CompressingAttributeCodec) codec).getStats());
+                }
+            }
+            SessionRepository<RedisSession> repository = redisSessionRepository;
+            if (properties.getRedis().isSingleFlight()) {
+                if (properties.getRedis().isLazyLoad() && redisSessionRepository.getNearCache() == null) {
+                    //复制按需加载的session会读取全部属性
+                    logger.warn("usession.redis.lazyLoad开启时singleFlight不生效");
+                } else {
+                    SingleFlightSessionRepository<RedisSession> singleFlight =
+                            new SingleFlightSessionRepository<>(repository, redisSessionRepository::copy);
+                    metrics.setSingleFlight(singleFlight);
+                    repository = singleFlight;
+                }
+            }
+            UnifySessionFilter<RedisSession> filter = createFilter(repository,
+                    redisSessionRepository::snapshot, properties, metrics);
             registration.setFilter(filter);
             find = true;
         }
@@ -78,6 +182,101 @@ public class UnifySessionConfiguration implements ApplicationContextAware {
         }
     }
 
+    /**
+     * @param snapshot 复制异步写入时使用的session快照
+     */
+    private <S extends Session> UnifySessionFilter<S> createFilter(SessionRepository<S> repository,
+                                                                   Function<S, S> snapshot,
+                                                                   UnifySessionProperties properties,
+                                                                   UnifySessionMetrics metrics) {
+        SessionRepository<S> decorated = decorate(repository, snapshot, properties, metrics);
+        UnifySessionFilter<S> filter = new UnifySessionFilter<>(decorated, properties);
+        UnifySessionProperties.AsyncLoad asyncLoad = properties.getAsyncLoad();
+        if (asyncLoad.isEnabled()) {
+            filter.setAsyncSessionRepository(new ExecutorAsyncSessionRepository<>(
+                    decorated,
+                    asyncLoad.getThreads(),
+                    asyncLoad.getQueueCapacity()));
+        }
+        return filter;
+    }
+
+    /**
+     * 创建内存仓库，分段时每段的容量是总容量的1/segments
+     */
+    private MSessionRepository createMemoryRepository(UnifySessionProperties.Memory memory, int segments) {
+        MSessionRepository repository = new MSessionRepository();
+        repository.setApplicationEventPublisher(applicationContext);
+        int maxSessions = memory.getMaxSessions() != null ? memory.getMaxSessions() : 0;
+        long maxBytes = memory.getMaxBytes() != null ? memory.getMaxBytes() : 0;
+        if (maxSessions > 0 || maxBytes > 0) {
+            repository.setEvictionPolicy(new SessionEvictionPolicy(memory.getEvictionPolicy(),
+                    maxSessions > 0 ? Math.max(1, maxSessions / segments) : 0,
+                    maxBytes > 0 ? Math.max(1, maxBytes / segments) : 0));
+        }
+        return repository;
+    }
+
+    private void configureSerialized(SerializedSessionRepository repository, UnifySessionProperties properties) {
+        repository.setApplicationEventPublisher(applicationContext);
+        Long cleanupInterval = properties.getMemory().getCleanupInterval();
+        if (cleanupInterval != null && cleanupInterval > 0) {
+            repository.startExpirySweeper(cleanupInterval);
+        }
+    }
+
+    /**
+     * 按配置在仓库外层加上异步写入等功能
+     */
+    private <S extends Session> SessionRepository<S> decorate(SessionRepository<S> repository,
+                                                              Function<S, S> snapshot,
+                                                              UnifySessionProperties properties,
+                                                              UnifySessionMetrics metrics) {
+        UnifySessionProperties.WriteBehind writeBehind = properties.getWriteBehind();
+        if (writeBehind.isEnabled()) {
+            WriteBehindSessionRepository<S> writeBehindRepository = new WriteBehindSessionRepository<>(
+                    repository,
+                    snapshot,
+                    writeBehind.getQueueCapacity(),
+                    writeBehind.getThreads());
+            metrics.setWriteBehind(writeBehindRepository);
+            repository = writeBehindRepository;
+        }
+        return repository;
+    }
+
+    private void configureNearCache(RedisSessionRepository redisSessionRepository,
+                                    UnifySessionProperties properties,
+                                    RedisTemplate<String, Object> jdkRedisTemplate) {
+        String channel = properties.getRedis().getInvalidationChannel();
+        UnifySessionProperties.NearCache nearCacheProperties = properties.getRedis().getNearCache();
+        if (!nearCacheProperties.isEnabled()) {
+            //没有启用本地缓存时只在明确配置了频道时发布，通知其他启用了本地缓存的节点
+            if (!StringUtils.isEmpty(channel)) {
+                redisSessionRepository.setInvalidationChannel(channel);
+            }
+            return;
+        }
+        if (StringUtils.isEmpty(channel)) {
+            channel = UnifySessionProperties.DEFAULT_INVALIDATION_CHANNEL;
+        }
+        redisSessionRepository.setInvalidationChannel(channel);
+        SessionNearCache nearCache = new SessionNearCache(
+                nearCacheProperties.getMaxEntries(),
+                nearCacheProperties.getMaxBytes(),
+                nearCacheProperties.getTtl());
+        redisSessionRepository.setNearCache(nearCache);
+        RedisConnectionFactory connectionFactory = jdkRedisTemplate.getConnectionFactory();
+        if (connectionFactory == null) {
+            throw new IllegalStateException("jdkRedisTemplate未配置RedisConnectionFactory");
+        }
+        listenerContainer = new RedisMessageListenerContainer();
+        listenerContainer.setConnectionFactory(connectionFactory);
+        listenerContainer.addMessageListener(nearCache, new ChannelTopic(channel));
+        listenerContainer.afterPropertiesSet();
+        listenerContainer.start();
+    }
+
     @Bean
     public UnifyHttpSessionListenerAdapter unifyHttpSessionListenerAdapter() {
         return new UnifyHttpSessionListenerAdapter(this.httpSessionListeners);
@@ -96,4 +295,11 @@ public class UnifySessionConfiguration implements ApplicationContextAware {
     public void setApplicationContext(ApplicationContext applicationContext) throws BeansException {
         this.applicationContext = applicationContext;
     }
+
+    @Override
+    public void destroy() throws Exception {
+        if (listenerContainer != null) {
+            listenerContainer.destroy();
+        }
+    }
 }
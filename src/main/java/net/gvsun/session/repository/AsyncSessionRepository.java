@@ -0,0 +1,24 @@
+package net.gvsun.session.repository;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 异步的session存储仓库，操作立即返回，结果通过CompletableFuture获取
+ *
+ * @author 陈敬
+ * @since 1.1.4-SNAPSHOT
+ */
+public interface AsyncSessionRepository<S extends Session> {
+    S createSession();
+
+    CompletableFuture<Void> save(S session);
+
+    /**
+     * @return session不存在时结果为null
+     */
+    CompletableFuture<S> findById(String sid);
+
+    CompletableFuture<S> findById(String sid, String projectName);
+
+    CompletableFuture<Void> deleteById(String sid);
+}
@@ -0,0 +1,87 @@
+package net.gvsun.session.repository;
+
+import org.springframework.beans.factory.DisposableBean;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 把同步的仓库放到独立的线程池中执行，实现{@link AsyncSessionRepository}
+ * <p>
+ * 被包装的仓库仍然使用阻塞的Jedis客户端，每个进行中的操作占用线程池中的一个线程，
+ * 异步只是让加载和请求中的其他处理同时进行，并不减少线程和连接的占用。
+ * 线程池的队列满时由调用线程直接执行，退化为同步调用。
+ * 还在排队时被取消的操作不会再执行
+ *
+ * @author 陈敬
+ * @since 1.1.4-SNAPSHOT
+ */
+public class ExecutorAsyncSessionRepository<S extends Session> implements AsyncSessionRepository<S>, DisposableBean {
+    private final SessionRepository<S> delegate;
+    private final ThreadPoolExecutor executor;
+
+    public ExecutorAsyncSessionRepository(SessionRepository<S> delegate, int threads, int queueCapacity) {
+        if (delegate == null) {
+            throw new IllegalArgumentException("delegate不能为null");
+        }
+        if (threads <= 0 || queueCapacity <= 0) {
+            throw new IllegalArgumentException("threads和queueCapacity必须大于0");
+        }
+        this.delegate = delegate;
+        AtomicInteger index = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                r -> {
+                    Thread thread = new Thread(r, "usession-async-" + index.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    public SessionRepository<S> getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public S createSession() {
+        return delegate.createSession();
+    }
+
+    @Override
+    public CompletableFuture<Void> save(S session) {
+        return CompletableFuture.runAsync(() -> delegate.save(session), this.executor);
+    }
+
+    @Override
+    public CompletableFuture<S> findById(String sid) {
+        return CompletableFuture.supplyAsync(() -> delegate.findById(sid), this.executor);
+    }
+
+    @Override
+    public CompletableFuture<S> findById(String sid, String projectName) {
+        return CompletableFuture.supplyAsync(() -> delegate.findById(sid, projectName), this.executor);
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteById(String sid) {
+        return CompletableFuture.runAsync(() -> delegate.deleteById(sid), this.executor);
+    }
+
+    /**
+     * 正在执行和排队中的操作数
+     */
+    public int getPendingCount() {
+        return this.executor.getActiveCount() + this.executor.getQueue().size();
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        this.executor.shutdown();
+        this.executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,76 @@
+package net.gvsun.session.repository;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 按需加载属性的Redis session
+ * <p>
+ * 创建时只包含元数据，第一次读取某个属性时才从Redis中读取该属性，
+ * 调用{@link #getAttributeNames()}时才读取全部属性
+ *
+ * @author 陈敬
+ * @since 1.1.4-SNAPSHOT
+ */
+public class LazyRedisSession extends RedisSession {
+    private final transient AttributeLoader loader;
+    //已经读取过、设置过或移除过的属性名，不需要再从Redis读取
+    private final Set<String> resolvedAttributeNames = ConcurrentHashMap.newKeySet();
+    private volatile boolean fullyLoaded;
+
+    LazyRedisSession(String id, AttributeLoader loader) {
+        super(id);
+        this.loader = loader;
+    }
+
+    @Override
+    public <T> T getAttribute(String name) {
+        if (!this.fullyLoaded && !this.resolvedAttributeNames.contains(name)) {
+            Map<String, Object> loaded = this.loader.load(this, Collections.singleton(name));
+            if (this.resolvedAttributeNames.add(name)) {
+                putLoadedAttribute(name, loaded.get(name));
+            }
+        }
+        return super.getAttribute(name);
+    }
+
+    @Override
+    public Set<String> getAttributeNames() {
+        if (!this.fullyLoaded) {
+            Map<String, Object> loaded = this.loader.load(this, null);
+            for (Map.Entry<String, Object> e : loaded.entrySet()) {
+                if (this.resolvedAttributeNames.add(e.getKey())) {
+                    putLoadedAttribute(e.getKey(), e.getValue());
+                }
+            }
+            this.fullyLoaded = true;
+        }
+        return super.getAttributeNames();
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+        this.resolvedAttributeNames.add(name);
+        super.setAttribute(name, value);
+    }
+
+    @Override
+    public void removeAttribute(String name) {
+        this.resolvedAttributeNames.add(name);
+        super.removeAttribute(name);
+    }
+
+    /**
+     * 从Redis中读取属性
+     */
+    interface AttributeLoader {
+        /**
+         * @param session 要读取属性的session，应使用它的originalId定位Redis中的key
+         * @param names   属性名，为null时读取全部属性
+         */
+        Map<String, Object> load(LazyRedisSession session, Collection<String> names);
+    }
+}
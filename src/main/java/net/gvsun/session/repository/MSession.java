@@ -6,21 +6,33 @@ import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.UnaryOperator;
 
 /**
  * 基于Map的session
+ * <p>
+ * 从另一个MSession复制时共享属性Map，任何一方第一次修改属性时才复制出自己的Map（写时复制），
+ * 只读取属性的请求不需要复制session
  *
  * @author 陈敬
  * @since 0.0.1-SNAPSHOT
  */
-public class MSession implements Session, Serializable {
+public class MSession implements Session, WriteBehindSession<MSession>, Serializable {
     private String id;
-    private final String originalId;
-    private Map<String, Object> sessionAttrs = new ConcurrentHashMap<>();
+    private String originalId;
+    private volatile Map<String, Object> sessionAttrs = new ConcurrentHashMap<>();
+    //sessionAttrs是否可能被其他MSession共享，为true时修改之前需要先复制
+    private volatile boolean sharedAttrs;
+    //本次请求中被设置过的属性名
+    private final Set<String> changedAttributeNames = ConcurrentHashMap.newKeySet();
+    //本次请求中被移除的属性名
+    private final Set<String> removedAttributeNames = ConcurrentHashMap.newKeySet();
     private long creationTime = System.currentTimeMillis();
     private long lastAccessedTime = this.creationTime;
     //默认的session的最大过期时间（秒）
     private int maxInactiveInterval = 1800;
+    //每次修改id、属性、访问时间或过期时间后递增
+    private transient long version;
 
     public MSession() {
         this(MSession.generateId());
@@ -32,11 +44,21 @@ public class MSession implements Session, Serializable {
         }
         this.id = session.getId();
         this.originalId = this.id;
-        this.sessionAttrs = new ConcurrentHashMap<>(session.getAttributeNames().size());
-        for (String name : session.getAttributeNames()) {
-            Object val = session.getAttribute(name);
-            if (val != null) {
-                this.sessionAttrs.put(name, val);
+        if (session instanceof MSession) {
+            MSession source = (MSession) session;
+            synchronized (source) {
+                source.sharedAttrs = true;
+                this.sessionAttrs = source.sessionAttrs;
+            }
+            this.sharedAttrs = true;
+        } else {
+            Set<String> names = session.getAttributeNames();
+            this.sessionAttrs = new ConcurrentHashMap<>(names.size());
+            for (String name : names) {
+                Object val = session.getAttribute(name);
+                if (val != null) {
+                    this.sessionAttrs.put(name, val);
+                }
             }
         }
         this.lastAccessedTime = session.getLastAccessedTime();
@@ -71,6 +93,7 @@ public class MSession implements Session, Serializable {
 
     public void setId(String id) {
         this.id = id;
+        this.version++;
     }
 
     @Override
@@ -86,15 +109,149 @@ public class MSession implements Session, Serializable {
 
     @Override
     public void setAttribute(String name, Object value) {
-        if (value == null)
+        if (value == null) {
             removeAttribute(name);
-        else
-            this.sessionAttrs.put(name, value);
+        } else {
+            writableAttrs().put(name, value);
+            this.removedAttributeNames.remove(name);
+            this.changedAttributeNames.add(name);
+            this.version++;
+        }
     }
 
     @Override
     public void removeAttribute(String name) {
-        this.sessionAttrs.remove(name);
+        if (this.sessionAttrs.containsKey(name)) {
+            writableAttrs().remove(name);
+        }
+        this.changedAttributeNames.remove(name);
+        this.removedAttributeNames.add(name);
+        this.version++;
+    }
+
+    /**
+     * 返回可以修改的属性Map，和其他MSession共享时先复制一份
+     */
+    private synchronized Map<String, Object> writableAttrs() {
+        if (this.sharedAttrs) {
+            this.sessionAttrs = new ConcurrentHashMap<>(this.sessionAttrs);
+            this.sharedAttrs = false;
+        }
+        return this.sessionAttrs;
+    }
+
+    /**
+     * 取出并清空上次保存之后被设置过的属性名
+     */
+    Set<String> drainChangedAttributeNames() {
+        return drain(this.changedAttributeNames);
+    }
+
+    /**
+     * 取出并清空上次保存之后被移除的属性名
+     */
+    Set<String> drainRemovedAttributeNames() {
+        return drain(this.removedAttributeNames);
+    }
+
+    /**
+     * 保存失败时把取出的变更放回去，留给下一次保存
+     */
+    void restoreChanges(Set<String> changed, Set<String> removed) {
+        for (String name : changed) {
+            if (!this.removedAttributeNames.contains(name)) {
+                this.changedAttributeNames.add(name);
+            }
+        }
+        for (String name : removed) {
+            if (!this.changedAttributeNames.contains(name)) {
+                this.removedAttributeNames.add(name);
+            }
+        }
+    }
+
+    /**
+     * 清空变更记录，用于从仓库中刚加载出来的session
+     */
+    void clearChanges() {
+        this.changedAttributeNames.clear();
+        this.removedAttributeNames.clear();
+    }
+
+    /**
+     * session已经以当前id保存，之后的保存不需要再处理id的变更
+     */
+    void markSaved() {
+        this.originalId = this.id;
+    }
+
+    /**
+     * 复制保存时需要的全部状态，包括原来的id和属性的变更记录，用于异步保存。属性Map写时复制
+     */
+    public MSession snapshot() {
+        return snapshot(UnaryOperator.identity());
+    }
+
+    /**
+     * @param copier 复制变更过的属性值
+     */
+    MSession snapshot(UnaryOperator<Object> copier) {
+        MSession snapshot = new MSession(this);
+        snapshot.originalId = this.originalId;
+        for (String name : this.changedAttributeNames) {
+            Object val = snapshot.sessionAttrs.get(name);
+            if (val != null) {
+                Object copy = copier.apply(val);
+                if (copy != val) {
+                    snapshot.writableAttrs().put(name, copy);
+                }
+                snapshot.changedAttributeNames.add(name);
+            }
+        }
+        snapshot.removedAttributeNames.addAll(this.removedAttributeNames);
+        return snapshot;
+    }
+
+    @Override
+    public void handOff(MSession snapshot) {
+        this.changedAttributeNames.removeAll(snapshot.changedAttributeNames);
+        this.removedAttributeNames.removeAll(snapshot.removedAttributeNames);
+        markSaved();
+    }
+
+    @Override
+    public void mergeEarlier(MSession earlier) {
+        this.originalId = earlier.originalId;
+        for (String name : earlier.changedAttributeNames) {
+            if (!this.changedAttributeNames.contains(name) && !this.removedAttributeNames.contains(name)) {
+                //使用更早的快照中复制出的值，当前快照中的是原session里的对象
+                writableAttrs().put(name, earlier.sessionAttrs.get(name));
+                this.changedAttributeNames.add(name);
+            }
+        }
+        for (String name : earlier.removedAttributeNames) {
+            if (!this.changedAttributeNames.contains(name)) {
+                this.removedAttributeNames.add(name);
+            }
+        }
+    }
+
+    @Override
+    public void restore(MSession failed) {
+        restoreChanges(failed.changedAttributeNames, failed.removedAttributeNames);
+        if (this.originalId.equals(failed.id)) {
+            this.originalId = failed.originalId;
+        }
+    }
+
+    private static Set<String> drain(Set<String> names) {
+        Set<String> result = new HashSet<>();
+        for (String name : names) {
+            if (names.remove(name)) {
+                result.add(name);
+            }
+        }
+        return result;
     }
 
     @Override
@@ -104,7 +261,10 @@ public class MSession implements Session, Serializable {
 
     @Override
     public void setLastAccessedTime(long time) {
-        this.lastAccessedTime = time;
+        if (this.lastAccessedTime != time) {
+            this.lastAccessedTime = time;
+            this.version++;
+        }
     }
 
     @Override
@@ -114,7 +274,15 @@ public class MSession implements Session, Serializable {
 
     @Override
     public void setMaxInactiveInterval(int interval) {
-        this.maxInactiveInterval = interval;
+        if (this.maxInactiveInterval != interval) {
+            this.maxInactiveInterval = interval;
+            this.version++;
+        }
+    }
+
+    @Override
+    public long getVersion() {
+        return this.version;
     }
 
     @Override
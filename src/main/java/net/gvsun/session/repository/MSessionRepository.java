@@ -1,21 +1,36 @@
 package net.gvsun.session.repository;
 
+import net.gvsun.session.SessionDestroyedEvent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.context.ApplicationEventPublisher;
 
+import java.util.Collection;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * 用Map实现的session存储仓库
+ * <p>
+ * 保存session时把sessionId登记到过期索引中，后台线程定期只检查已经到期的session，不需要扫描整个Map
  *
  * @author 陈敬
  * @since 0.0.1-SNAPSHOT
  */
-public class MSessionRepository implements SessionRepository<MSession> {
+public class MSessionRepository implements SessionRepository<MSession>, DisposableBean {
     private static final Logger logger = LoggerFactory.getLogger(MSessionRepository.class);
     private Integer defaultMaxInactiveInterval; //s
     private final Map<String, Session> sessions;
+    private final SessionExpiryIndex expiryIndex = new SessionExpiryIndex();
+    private final AtomicLong expiredCount = new AtomicLong();
+    private ApplicationEventPublisher applicationEventPublisher;
+    private ScheduledExecutorService sweeper;
+    //为null时不限制容量
+    private SessionEvictionPolicy evictionPolicy;
 
     public MSessionRepository() {
         sessions = new ConcurrentHashMap<>();
@@ -33,6 +48,81 @@ public class MSessionRepository implements SessionRepository<MSession> {
         this.defaultMaxInactiveInterval = defaultMaxInactiveInterval;
     }
 
+    /**
+     * 设置后过期的session会发布{@link SessionDestroyedEvent}
+     */
+    public void setApplicationEventPublisher(ApplicationEventPublisher applicationEventPublisher) {
+        this.applicationEventPublisher = applicationEventPublisher;
+    }
+
+    /**
+     * 限制仓库的容量，超出时按策略淘汰session，被淘汰的session同样会发布{@link SessionDestroyedEvent}
+     */
+    public void setEvictionPolicy(SessionEvictionPolicy evictionPolicy) {
+        this.evictionPolicy = evictionPolicy;
+    }
+
+    public SessionEvictionPolicy getEvictionPolicy() {
+        return evictionPolicy;
+    }
+
+    /**
+     * 启动后台线程，每隔interval毫秒清理一次过期的session
+     */
+    public synchronized void startExpirySweeper(long interval) {
+        if (this.sweeper == null) {
+            this.sweeper = SessionExpiryIndex.startSweeper(interval, this::cleanupExpiredSessions);
+        }
+    }
+
+    /**
+     * 清理过期索引中已经到期的session
+     *
+     * @return 清理的session数
+     */
+    public int cleanupExpiredSessions() {
+        int count = 0;
+        for (String sid : this.expiryIndex.pollExpired(System.currentTimeMillis())) {
+            Session saved = this.sessions.get(sid);
+            if (saved == null) {
+                continue;
+            }
+            if (!saved.isExpired()) {
+                //访问时间在登记之后更新过，重新登记，否则之后不会再被清理
+                this.sessions.computeIfPresent(sid, (id, current) -> {
+                    index(current);
+                    return current;
+                });
+            } else if (discard(sid, saved) != null) {
+                expired(saved);
+                count++;
+            }
+        }
+        if (count > 0) {
+            logger.debug("清理了{}个过期session", count);
+        }
+        return count;
+    }
+
+    public int getSessionCount() {
+        return this.sessions.size();
+    }
+
+    /**
+     * 已经清理的过期session数
+     */
+    public long getExpiredCount() {
+        return this.expiredCount.get();
+    }
+
+    @Override
+    public synchronized void destroy() {
+        if (this.sweeper != null) {
+            this.sweeper.shutdownNow();
+            this.sweeper = null;
+        }
+    }
+
     @Override
     public MSession createSession() {
         MSession result = new MSession();
@@ -45,23 +135,91 @@ public class MSessionRepository implements SessionRepository<MSession> {
 
     @Override
     public void save(MSession session) {
-        if (!session.getId().equals(session.getOriginalId())) {
-            this.sessions.remove(session.getOriginalId());
+        if (this.evictionPolicy == null) {
+            store(session);
+        } else {
+            //保存、记录到淘汰策略和移除被淘汰的session在同一个锁中完成，淘汰策略的记录和仓库中的session始终一致
+            synchronized (this.evictionPolicy) {
+                Session stored = store(session);
+                for (String victim : this.evictionPolicy.onWrite(stored.getId(), estimateSize(stored))) {
+                    Session evicted = removeSession(victim, null);
+                    if (evicted != null) {
+                        logger.debug("容量已满，淘汰session:{}", victim);
+                        destroyed(evicted);
+                    }
+                }
+            }
         }
-        this.sessions.put(session.getId(), new MSession(session));
+        session.markSaved();
         logger.debug("保存session:{}", session.getId());
     }
 
+    /**
+     * 把本次请求中的变更合并到已保存的session中
+     *
+     * @return 仓库中保存的session
+     */
+    private Session store(MSession session) {
+        Session original = null;
+        if (!session.getId().equals(session.getOriginalId())) {
+            original = removeSession(session.getOriginalId(), null);
+        }
+        //只把本次请求中变更过的属性合并到已保存的session中
+        Set<String> changed = session.drainChangedAttributeNames();
+        Set<String> removed = session.drainRemovedAttributeNames();
+        if (original != null) {
+            untrack(session.getOriginalId());
+        }
+        Session base = original;
+        return this.sessions.compute(session.getId(), (id, saved) -> {
+            Session target = saved != null ? saved : base;
+            if (target == null) {
+                MSession created = new MSession(session);
+                //和保存在同一个原子操作中登记，并发保存时索引总是对应最后保存的session
+                index(created);
+                return created;
+            }
+            MSession merged = new MSession(target);
+            merged.setId(id);
+            for (String name : changed) {
+                Object val = session.getAttribute(name);
+                if (val != null) {
+                    merged.setAttribute(name, val);
+                }
+            }
+            for (String name : removed) {
+                merged.removeAttribute(name);
+            }
+            merged.setCreationTime(session.getCreationTime());
+            merged.setLastAccessedTime(session.getLastAccessedTime());
+            merged.setMaxInactiveInterval(session.getMaxInactiveInterval());
+            merged.clearChanges();
+            index(merged);
+            return merged;
+        });
+    }
+
     @Override
     public MSession findById(String sid) {
         logger.debug("查找session:{}", sid);
         Session saved = this.sessions.get(sid);
         if (saved == null) {
+            if (this.evictionPolicy != null) {
+                this.evictionPolicy.onMiss(sid);
+            }
             return null;
         } else if (saved.isExpired()) {
-            this.deleteById(saved.getId());
+            if (this.evictionPolicy != null) {
+                this.evictionPolicy.onMiss(sid);
+            }
+            if (discard(sid, saved) != null) {
+                expired(saved);
+            }
             return null;
         } else {
+            if (this.evictionPolicy != null) {
+                this.evictionPolicy.onHit(sid);
+            }
             return new MSession(saved);
         }
     }
@@ -73,7 +231,100 @@ public class MSessionRepository implements SessionRepository<MSession> {
 
     @Override
     public void deleteById(String sid) {
-        this.sessions.remove(sid);
+        discard(sid, null);
         logger.debug("删除session:{}", sid);
     }
+
+    /**
+     * 删除session并在同一个原子操作中移除过期索引
+     *
+     * @param expected 不为null时只在保存的仍然是该对象时删除
+     * @return 被删除的session
+     */
+    private Session removeSession(String sid, Session expected) {
+        Session[] removed = new Session[1];
+        this.sessions.computeIfPresent(sid, (id, saved) -> {
+            if (expected != null && saved != expected) {
+                return saved;
+            }
+            unindex(id);
+            removed[0] = saved;
+            return null;
+        });
+        return removed[0];
+    }
+
+    /**
+     * 删除session，同时从淘汰策略中移除，和保存使用同一个锁
+     *
+     * @param expected 不为null时只在保存的仍然是该对象时删除
+     * @return 被删除的session
+     */
+    private Session discard(String sid, Session expected) {
+        if (this.evictionPolicy == null) {
+            return removeSession(sid, expected);
+        }
+        synchronized (this.evictionPolicy) {
+            Session removed = removeSession(sid, expected);
+            if (removed != null || expected == null) {
+                this.evictionPolicy.remove(sid);
+            }
+            return removed;
+        }
+    }
+
+    private void index(Session session) {
+        this.expiryIndex.add(session.getId(), session.getLastAccessedTime(), session.getMaxInactiveInterval());
+    }
+
+    private void unindex(String sid) {
+        this.expiryIndex.remove(sid);
+    }
+
+    private void untrack(String sid) {
+        if (this.evictionPolicy != null) {
+            this.evictionPolicy.remove(sid);
+        }
+    }
+
+    /**
+     * 粗略估算session占用的堆内存字节数，只用于容量限制
+     */
+    static long estimateSize(Session session) {
+        long size = 128;
+        for (String name : session.getAttributeNames()) {
+            size += 48 + name.length() * 2L + estimateValueSize(session.getAttribute(name));
+        }
+        return size;
+    }
+
+    private static long estimateValueSize(Object value) {
+        if (value == null) {
+            return 0;
+        } else if (value instanceof CharSequence) {
+            return 40 + ((CharSequence) value).length() * 2L;
+        } else if (value instanceof byte[]) {
+            return 16 + ((byte[]) value).length;
+        } else if (value instanceof Number || value instanceof Boolean || value instanceof Character) {
+            return 16;
+        } else if (value instanceof Collection) {
+            //不深入元素，避免遍历大集合
+            return 64 + ((Collection<?>) value).size() * 32L;
+        } else if (value instanceof Map) {
+            return 64 + ((Map<?, ?>) value).size() * 64L;
+        }
+        return 64;
+    }
+
+    private void expired(Session session) {
+        this.expiredCount.incrementAndGet();
+        logger.debug("session:{}已过期", session.getId());
+        destroyed(session);
+    }
+
+    private void destroyed(Session session) {
+        if (this.applicationEventPublisher != null) {
+            this.applicationEventPublisher.publishEvent(new SessionDestroyedEvent(this, session));
+        }
+    }
 }
@@ -0,0 +1,323 @@
+package net.gvsun.session.repository;
+
+import net.gvsun.session.codec.AttributeCodec;
+import net.gvsun.session.codec.CompactAttributeCodec;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * 把session保存在内存映射文件中的仓库，重启之后session仍然有效，适合单节点部署
+ * <p>
+ * 文件是一个只追加的日志，每条记录依次是记录长度、CRC32、类型（保存或删除）、sessionId和session的数据，
+ * 记录长度为0表示日志结束。保存session时追加一条新记录，旧记录成为垃圾；只有访问时间变化时原地改写。
+ * 原地改写的lastAccessedTime和maxInactiveInterval不计入CRC，改写到一半时进程退出不会使记录失效。
+ * 文件写满时把仍然有效的记录复制到新文件中，再用新文件替换旧文件。
+ * <p>
+ * 启动时顺序扫描日志，只读取记录头重建sessionId到记录位置的索引，不反序列化属性；
+ * CRC不正确的记录（例如进程在写入时退出）被跳过，遇到长度不正确的记录才认为日志到此结束。
+ * 数据写入映射内存后由操作系统写回磁盘，进程退出不会丢失，操作系统崩溃时可能丢失最近的写入。
+ * 同一个文件只能由一个进程使用
+ *
+ * @author 陈敬
+ * @since 1.1.4-SNAPSHOT
+ */
+public class MappedFileSessionRepository extends SerializedSessionRepository {
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    //记录头：长度、CRC32、类型、sessionId的长度
+    private static final int CRC_OFFSET = 4;
+    private static final int TYPE_OFFSET = 8;
+    private static final int ID_LENGTH_OFFSET = 9;
+    private static final int RECORD_HEADER = 11;
+    private final Path path;
+    private final int fileSize;
+    private MappedByteBuffer buffer;
+    //下一条记录写入的位置
+    private int position;
+    //sessionId到最新一条保存记录的位置，和buffer一起由this保护
+    private final HashMap<String, Integer> index = new HashMap<>();
+    //有效记录的总字节数
+    private long liveBytes;
+    private long compactionCount;
+
+    public MappedFileSessionRepository(String file, int fileSize) {
+        this(file, fileSize, new CompactAttributeCodec());
+    }
+
+    /**
+     * @param file     保存session的文件，不存在时创建
+     * @param fileSize 文件的大小，有效的session总大小不能超过该值
+     */
+    public MappedFileSessionRepository(String file, int fileSize, AttributeCodec codec) {
+        super(codec);
+        if (fileSize < 1024) {
+            throw new IllegalArgumentException("fileSize不能小于1024");
+        }
+        this.path = Paths.get(file).toAbsolutePath();
+        this.fileSize = fileSize;
+        try {
+            Files.createDirectories(this.path.getParent());
+            this.buffer = map(this.path, fileSize);
+        } catch (IOException e) {
+            throw new UncheckedIOException("打开session文件" + this.path + "失败", e);
+        }
+        recover();
+    }
+
+    public synchronized int getSessionCount() {
+        return this.index.size();
+    }
+
+    /**
+     * 日志已经使用的字节数，包括垃圾记录
+     */
+    public synchronized int getUsedBytes() {
+        return this.position;
+    }
+
+    public synchronized long getLiveBytes() {
+        return this.liveBytes;
+    }
+
+    public synchronized long getCompactionCount() {
+        return this.compactionCount;
+    }
+
+    /**
+     * 把有效的记录复制到新文件中，丢弃垃圾记录
+     */
+    public synchronized void compact() {
+        Path target = this.path.resolveSibling(this.path.getFileName() + ".compact");
+        try {
+            MappedByteBuffer compacted = map(target, this.fileSize);
+            int pos = 0;
+            for (Map.Entry<String, Integer> e : this.index.entrySet()) {
+                int start = e.getValue();
+                int length = this.buffer.getInt(start);
+                ByteBuffer record = this.buffer.duplicate();
+                record.limit(start + length).position(start);
+                compacted.position(pos);
+                compacted.put(record);
+                e.setValue(pos);
+                pos += length;
+            }
+            compacted.putInt(pos, 0);
+            compacted.force();
+            Files.move(target, this.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            this.buffer = compacted;
+            this.position = pos;
+            this.liveBytes = pos;
+            this.compactionCount++;
+            logger.info("压缩session文件完成，有效数据{}字节", pos);
+        } catch (IOException e) {
+            throw new UncheckedIOException("压缩session文件" + this.path + "失败", e);
+        }
+    }
+
+    @Override
+    public synchronized void destroy() {
+        super.destroy();
+        this.buffer.force();
+    }
+
+    @Override
+    protected synchronized boolean touch(String sid, long lastAccessedTime, int maxInactiveInterval) {
+        Integer pos = this.index.get(sid);
+        if (pos == null) {
+            return false;
+        }
+        int data = dataOffset(pos);
+        this.buffer.putInt(data + MAX_INACTIVE_OFFSET, maxInactiveInterval);
+        this.buffer.putLong(data + LAST_ACCESSED_OFFSET, lastAccessedTime);
+        return true;
+    }
+
+    @Override
+    protected synchronized boolean isExpired(String sid) {
+        Integer pos = this.index.get(sid);
+        if (pos == null) {
+            return false;
+        }
+        int data = dataOffset(pos);
+        return isExpired(this.buffer.getInt(data + MAX_INACTIVE_OFFSET), this.buffer.getLong(data + LAST_ACCESSED_OFFSET));
+    }
+
+    @Override
+    protected synchronized byte[] read(String sid) {
+        Integer pos = this.index.get(sid);
+        if (pos == null) {
+            return null;
+        }
+        int data = dataOffset(pos);
+        byte[] result = new byte[pos + this.buffer.getInt(pos) - data];
+        ByteBuffer record = this.buffer.duplicate();
+        record.position(data);
+        record.get(result);
+        return result;
+    }
+
+    @Override
+    protected synchronized void write(String sid, byte[] data) {
+        int pos = append(PUT, sid, data);
+        Integer previous = this.index.put(sid, pos);
+        if (previous != null) {
+            this.liveBytes -= this.buffer.getInt(previous);
+        }
+        this.liveBytes += this.buffer.getInt(pos);
+    }
+
+    @Override
+    protected synchronized byte[] remove(String sid) {
+        byte[] data = read(sid);
+        if (data != null) {
+            //追加删除记录，重启之后不会恢复已删除的session
+            append(DELETE, sid, new byte[0]);
+            this.liveBytes -= this.buffer.getInt(this.index.remove(sid));
+        }
+        return data;
+    }
+
+    /**
+     * 追加一条记录，空间不够时先压缩文件
+     *
+     * @return 记录的位置
+     */
+    private int append(byte type, String sid, byte[] data) {
+        byte[] id = sid.getBytes(StandardCharsets.UTF_8);
+        int length = RECORD_HEADER + id.length + data.length;
+        //记录之后还要写入4字节的结束标记
+        if (this.position + length + 4 > this.fileSize) {
+            compact();
+            if (this.position + length + 4 > this.fileSize) {
+                throw new IllegalStateException("session文件已满，无法保存session:" + sid);
+            }
+        }
+        ByteBuffer record = ByteBuffer.allocate(length);
+        record.putInt(length);
+        record.putInt(0);
+        record.put(type);
+        record.putShort((short) id.length);
+        record.put(id);
+        record.put(data);
+        int pos = this.position;
+        this.buffer.position(pos);
+        this.buffer.put(record.array());
+        //最后写入CRC，记录写到一半时CRC不正确
+        this.buffer.putInt(pos + CRC_OFFSET, crc(pos, length));
+        this.buffer.putInt(pos + length, 0);
+        this.position = pos + length;
+        return pos;
+    }
+
+    /**
+     * 扫描日志重建索引，只读取记录头
+     */
+    private void recover() {
+        int pos = 0;
+        int recovered = 0;
+        int skipped = 0;
+        while (pos + RECORD_HEADER <= this.fileSize) {
+            int length = this.buffer.getInt(pos);
+            if (length == 0) {
+                break;
+            }
+            if (!isValidLength(pos, length)) {
+                logger.warn("session文件{}在位置{}的记录长度不正确，丢弃之后的数据", this.path, pos);
+                break;
+            }
+            if (this.buffer.getInt(pos + CRC_OFFSET) != crc(pos, length)) {
+                //长度正确时只丢弃这一条记录，之后的记录仍然有效
+                logger.warn("session文件{}在位置{}的记录已损坏，跳过该记录", this.path, pos);
+                pos += length;
+                skipped++;
+                continue;
+            }
+            String sid = readId(pos);
+            Integer previous = this.buffer.get(pos + TYPE_OFFSET) == PUT ? this.index.put(sid, pos) : this.index.remove(sid);
+            if (previous != null) {
+                this.liveBytes -= this.buffer.getInt(previous);
+            }
+            if (this.buffer.get(pos + TYPE_OFFSET) == PUT) {
+                this.liveBytes += length;
+            }
+            pos += length;
+            recovered++;
+        }
+        this.position = pos;
+        for (Map.Entry<String, Integer> e : this.index.entrySet()) {
+            int data = dataOffset(e.getValue());
+            registerExpiry(e.getKey(), this.buffer.getLong(data + LAST_ACCESSED_OFFSET), this.buffer.getInt(data + MAX_INACTIVE_OFFSET));
+        }
+        logger.info("从session文件{}中读取了{}条记录，跳过了{}条损坏的记录，恢复了{}个session",
+                this.path, recovered, skipped, this.index.size());
+    }
+
+    private String readId(int pos) {
+        byte[] id = new byte[this.buffer.getShort(pos + ID_LENGTH_OFFSET) & 0xFFFF];
+        ByteBuffer record = this.buffer.duplicate();
+        record.position(pos + RECORD_HEADER);
+        record.get(id);
+        return new String(id, StandardCharsets.UTF_8);
+    }
+
+    private int dataOffset(int pos) {
+        return pos + RECORD_HEADER + (this.buffer.getShort(pos + ID_LENGTH_OFFSET) & 0xFFFF);
+    }
+
+    /**
+     * 记录长度能容纳记录头、sessionId以及保存记录的session头部
+     */
+    private boolean isValidLength(int pos, int length) {
+        if (length < RECORD_HEADER || pos + length > this.fileSize) {
+            return false;
+        }
+        int data = dataOffset(pos);
+        return this.buffer.get(pos + TYPE_OFFSET) == PUT ? data + HEADER <= pos + length : data <= pos + length;
+    }
+
+    /**
+     * 计算类型之后的所有字节的CRC，保存记录中会被原地改写的访问时间和过期时间除外
+     */
+    private int crc(int pos, int length) {
+        CRC32 crc = new CRC32();
+        int end = pos + length;
+        if (this.buffer.get(pos + TYPE_OFFSET) == PUT) {
+            int data = dataOffset(pos);
+            update(crc, pos + TYPE_OFFSET, data + MAX_INACTIVE_OFFSET);
+            update(crc, data + CREATION_TIME_OFFSET, data + LAST_ACCESSED_OFFSET);
+            update(crc, data + HEADER, end);
+        } else {
+            update(crc, pos + TYPE_OFFSET, end);
+        }
+        return (int) crc.getValue();
+    }
+
+    private void update(CRC32 crc, int from, int to) {
+        ByteBuffer range = this.buffer.duplicate();
+        range.limit(to).position(from);
+        crc.update(range);
+    }
+
+    private static MappedByteBuffer map(Path path, int size) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            if (file.length() < size) {
+                file.setLength(size);
+            }
+            //映射在通道关闭之后仍然有效
+            return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package net.gvsun.session.repository;
+
+import net.gvsun.session.codec.AttributeCodec;
+import net.gvsun.session.codec.CompactAttributeCodec;
+
+/**
+ * 把序列化后的session保存在堆外直接内存中的仓库，适合单节点部署且session数量很多的场景
+ * <p>
+ * 每个session占用一个存储块，存储块的前4个字节是数据长度，session的数据和属性都在堆外。
+ * 堆内还有sessionId到存储块地址的索引（值是long，不装箱）以及过期索引。
+ * session按sessionId分到多个分片，每个分片有自己的分配器、索引和锁，不同分片的读写互不阻塞。
+ * 没有实现Serializable的属性不会保存，读取session得到的是反序列化出的新对象
+ *
+ * @author 陈敬
+ * @since 1.1.4-SNAPSHOT
+ */
+public class OffHeapSessionRepository extends SerializedSessionRepository {
+    private static final int LENGTH = 4;
+    private final Shard[] shards;
+
+    public OffHeapSessionRepository(int slabSize, long maxBytes) {
+        this(slabSize, maxBytes, 1, new CompactAttributeCodec());
+    }
+
+    /**
+     * @param slabSize 每次向操作系统申请的直接内存的字节数，单个session序列化后不能超过该大小
+     * @param maxBytes 最多使用的直接内存的字节数，平均分给各分片
+     * @param shards   分片数，每个分片至少能申请一个slab，maxBytes不够时减少分片数
+     */
+    public OffHeapSessionRepository(int slabSize, long maxBytes, int shards, AttributeCodec codec) {
+        super(codec);
+        if (shards <= 0) {
+            throw new IllegalArgumentException("shards必须大于0");
+        }
+        int count = (int) Math.max(1, Math.min(shards, maxBytes / Math.max(slabSize, 1)));
+        this.shards = new Shard[count];
+        for (int i = 0; i < count; i++) {
+            this.shards[i] = new Shard(new SlabAllocator(slabSize, maxBytes / count));
+        }
+    }
+
+    public int getShardCount() {
+        return this.shards.length;
+    }
+
+    public int getSessionCount() {
+        int count = 0;
+        for (Shard shard : this.shards) {
+            synchronized (shard) {
+                count += shard.index.size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 已经申请的直接内存字节数
+     */
+    public long getReservedBytes() {
+        long bytes = 0;
+        for (Shard shard : this.shards) {
+            synchronized (shard) {
+                bytes += shard.allocator.getReservedBytes();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * session占用的存储块的总字节数
+     */
+    public long getUsedBytes() {
+        long bytes = 0;
+        for (Shard shard : this.shards) {
+            synchronized (shard) {
+                bytes += shard.allocator.getUsedBytes();
+            }
+        }
+        return bytes;
+    }
+
+    @Override
+    public void destroy() {
+        super.destroy();
+        for (Shard shard : this.shards) {
+            synchronized (shard) {
+                shard.index.clear();
+                shard.allocator.clear();
+            }
+        }
+    }
+
+    @Override
+    protected boolean touch(String sid, long lastAccessedTime, int maxInactiveInterval) {
+        Shard shard = shard(sid);
+        synchronized (shard) {
+            long address = shard.index.get(sid);
+            if (address < 0) {
+                return false;
+            }
+            shard.allocator.putInt(address, LENGTH + MAX_INACTIVE_OFFSET, maxInactiveInterval);
+            shard.allocator.putLong(address, LENGTH + LAST_ACCESSED_OFFSET, lastAccessedTime);
+            return true;
+        }
+    }
+
+    @Override
+    protected boolean isExpired(String sid) {
+        Shard shard = shard(sid);
+        synchronized (shard) {
+            long address = shard.index.get(sid);
+            return address >= 0 && isExpired(
+                    shard.allocator.getInt(address, LENGTH + MAX_INACTIVE_OFFSET),
+                    shard.allocator.getLong(address, LENGTH + LAST_ACCESSED_OFFSET));
+        }
+    }
+
+    @Override
+    protected byte[] read(String sid) {
+        Shard shard = shard(sid);
+        synchronized (shard) {
+            return read(shard, shard.index.get(sid));
+        }
+    }
+
+    /**
+     * 原来的存储块放得下且没有大出一倍以上时原地覆盖，否则先分配新的存储块再释放原来的，
+     * 堆外内存不够时原来的数据保持不变
+     */
+    @Override
+    protected void write(String sid, byte[] data) {
+        int length = LENGTH + data.length;
+        Shard shard = shard(sid);
+        synchronized (shard) {
+            long address = shard.index.get(sid);
+            long previous = -1;
+            if (address >= 0 && (shard.allocator.capacity(address) < length
+                    || shard.allocator.capacity(address) > Math.max(2 * length, 128))) {
+                previous = address;
+                address = -1;
+            }
+            if (address < 0) {
+                address = shard.allocator.allocate(length);
+                if (address < 0) {
+                    throw new IllegalStateException("堆外内存已用完，无法保存session:" + sid);
+                }
+            }
+            shard.allocator.putInt(address, 0, data.length);
+            shard.allocator.write(address, LENGTH, data);
+            shard.index.put(sid, address);
+            if (previous >= 0) {
+                shard.allocator.free(previous);
+            }
+        }
+    }
+
+    @Override
+    protected byte[] remove(String sid) {
+        Shard shard = shard(sid);
+        synchronized (shard) {
+            long address = shard.index.remove(sid);
+            byte[] data = read(shard, address);
+            if (address >= 0) {
+                shard.allocator.free(address);
+            }
+            return data;
+        }
+    }
+
+    private static byte[] read(Shard shard, long address) {
+        if (address < 0) {
+            return null;
+        }
+        byte[] data = new byte[shard.allocator.getInt(address, 0)];
+        shard.allocator.read(address, LENGTH, data);
+        return data;
+    }
+
+    private Shard shard(String sid) {
+        return this.shards[(sid.hashCode() & 0x7FFFFFFF) % this.shards.length];
+    }
+
+    /**
+     * 一个分片的分配器和索引，由分片自身的锁保护
+     */
+    private static final class Shard {
+        private final SlabAllocator allocator;
+        private final AddressIndex index = new AddressIndex();
+
+        private Shard(SlabAllocator allocator) {
+            this.allocator = allocator;
+        }
+    }
+
+    /**
+     * sessionId到存储块地址的开放寻址哈希表，地址直接存放在long数组中避免装箱，不存在时返回-1
+     */
+    private static final class AddressIndex {
+        private static final int INITIAL_CAPACITY = 16;
+        private String[] keys = new String[INITIAL_CAPACITY];
+        private long[] values = new long[INITIAL_CAPACITY];
+        private int size;
+
+        private int size() {
+            return this.size;
+        }
+
+        private long get(String key) {
+            int mask = this.keys.length - 1;
+            for (int i = hash(key) & mask; this.keys[i] != null; i = (i + 1) & mask) {
+                if (this.keys[i].equals(key)) {
+                    return this.values[i];
+                }
+            }
+            return -1;
+        }
+
+        private void put(String key, long value) {
+            if ((this.size + 1) * 4 > this.keys.length * 3) {
+                resize(this.keys.length * 2);
+            }
+            int mask = this.keys.length - 1;
+            int i = hash(key) & mask;
+            for (; this.keys[i] != null; i = (i + 1) & mask) {
+                if (this.keys[i].equals(key)) {
+                    this.values[i] = value;
+                    return;
+                }
+            }
+            this.keys[i] = key;
+            this.values[i] = value;
+            this.size++;
+        }
+
+        private long remove(String key) {
+            int mask = this.keys.length - 1;
+            int i = hash(key) & mask;
+            for (; this.keys[i] != null; i = (i + 1) & mask) {
+                if (this.keys[i].equals(key)) {
+                    break;
+                }
+            }
+            if (this.keys[i] == null) {
+                return -1;
+            }
+            long value = this.values[i];
+            //把后面同一探测链上的元素前移，保证查找不会在空位提前结束
+            for (int j = (i + 1) & mask; this.keys[j] != null; j = (j + 1) & mask) {
+                int home = hash(this.keys[j]) & mask;
+                if (((j - home) & mask) >= ((j - i) & mask)) {
+                    this.keys[i] = this.keys[j];
+                    this.values[i] = this.values[j];
+                    i = j;
+                }
+            }
+            this.keys[i] = null;
+            this.size--;
+            return value;
+        }
+
+        private void clear() {
+            this.keys = new String[INITIAL_CAPACITY];
+            this.values = new long[INITIAL_CAPACITY];
+            this.size = 0;
+        }
+
+        private void resize(int capacity) {
+            String[] oldKeys = this.keys;
+            long[] oldValues = this.values;
+            this.keys = new String[capacity];
+            this.values = new long[capacity];
+            this.size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != null) {
+                    put(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+
+        private static int hash(String key) {
+            int h = key.hashCode();
+            return h ^ (h >>> 16);
+        }
+    }
+}
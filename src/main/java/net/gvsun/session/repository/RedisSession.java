@@ -1,11 +1,13 @@
 package net.gvsun.session.repository;
 
 import java.io.Serializable;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.UnaryOperator;
 
 /**
  * 基于Redis的session
@@ -13,14 +15,26 @@ import java.util.concurrent.ConcurrentHashMap;
  * @author 陈敬
  * @since 0.0.2-SNAPSHOT
  */
-public class RedisSession implements Session, Serializable {
+public class RedisSession implements Session, WriteBehindSession<RedisSession>, Serializable {
     private String id;
-    private final String originalId;
+    private String originalId;
     private Map<String, Object> sessionAttrs = new ConcurrentHashMap<>();
+    //本次请求中被设置过的属性名
+    private final Set<String> changedAttributeNames = ConcurrentHashMap.newKeySet();
+    //本次请求中被移除的属性名
+    private final Set<String> removedAttributeNames = ConcurrentHashMap.newKeySet();
     private long creationTime = System.currentTimeMillis();
     private long lastAccessedTime = this.creationTime;
     //默认的session的最大过期时间（秒）
     private int maxInactiveInterval = 1800;
+    //每次修改id、属性、访问时间或过期时间后递增
+    private transient long version;
+    //加载时预读的其他项目的共享属性，项目名到属性名和JSON的映射
+    private Map<String, Map<String, String>> prefetchedShareAttributes = Collections.emptyMap();
+    //最后一次写入Redis的最后访问时间，为0表示session还没有保存过
+    private long savedLastAccessedTime;
+    //最后一次写入Redis时的最大过期时间，和当前值不同时需要重新设置key的过期时间
+    private int savedMaxInactiveInterval = this.maxInactiveInterval;
 
     public RedisSession() {
         this(RedisSession.generateId());
@@ -47,6 +61,9 @@ public class RedisSession implements Session, Serializable {
         this.lastAccessedTime = session.getLastAccessedTime();
         this.creationTime = session.getCreationTime();
         this.maxInactiveInterval = session.getMaxInactiveInterval();
+        this.savedLastAccessedTime = session.savedLastAccessedTime;
+        this.savedMaxInactiveInterval = session.savedMaxInactiveInterval;
+        this.prefetchedShareAttributes = session.prefetchedShareAttributes;
     }
 
     @Override
@@ -71,6 +88,7 @@ public class RedisSession implements Session, Serializable {
 
     public void setId(String id) {
         this.id = id;
+        this.version++;
     }
 
     @Override
@@ -87,15 +105,195 @@ public class RedisSession implements Session, Serializable {
 
     @Override
     public void setAttribute(String name, Object value) {
-        if (value == null)
+        if (value == null) {
             removeAttribute(name);
-        else
+        } else {
             this.sessionAttrs.put(name, value);
+            this.removedAttributeNames.remove(name);
+            this.changedAttributeNames.add(name);
+            this.version++;
+        }
     }
 
     @Override
     public void removeAttribute(String name) {
         this.sessionAttrs.remove(name);
+        this.changedAttributeNames.remove(name);
+        this.removedAttributeNames.add(name);
+        this.version++;
+    }
+
+    /**
+     * 获取加载时预读的项目的全部共享属性，属性名不含共享前缀
+     *
+     * @return 项目没有预读时返回null
+     */
+    public Map<String, String> getPrefetchedShareAttributes(String projectName) {
+        return this.prefetchedShareAttributes.get(projectName);
+    }
+
+    Map<String, Map<String, String>> getPrefetchedShareAttributes() {
+        return this.prefetchedShareAttributes;
+    }
+
+    void setPrefetchedShareAttributes(Map<String, Map<String, String>> prefetchedShareAttributes) {
+        this.prefetchedShareAttributes = prefetchedShareAttributes;
+    }
+
+    /**
+     * 放入从仓库中读取的属性，不记为变更
+     */
+    void putLoadedAttribute(String name, Object value) {
+        if (value != null) {
+            this.sessionAttrs.put(name, value);
+        }
+    }
+
+    /**
+     * 上次保存之后是否设置或移除过属性
+     */
+    boolean hasChanges() {
+        return !this.changedAttributeNames.isEmpty() || !this.removedAttributeNames.isEmpty();
+    }
+
+    /**
+     * 取出并清空上次保存之后被设置过的属性名
+     */
+    Set<String> drainChangedAttributeNames() {
+        return drain(this.changedAttributeNames);
+    }
+
+    /**
+     * 取出并清空上次保存之后被移除的属性名
+     */
+    Set<String> drainRemovedAttributeNames() {
+        return drain(this.removedAttributeNames);
+    }
+
+    /**
+     * 保存失败时把取出的变更放回去，留给下一次保存
+     */
+    void restoreChanges(Set<String> changed, Set<String> removed) {
+        for (String name : changed) {
+            if (!this.removedAttributeNames.contains(name)) {
+                this.changedAttributeNames.add(name);
+            }
+        }
+        for (String name : removed) {
+            if (!this.changedAttributeNames.contains(name)) {
+                this.removedAttributeNames.add(name);
+            }
+        }
+    }
+
+    /**
+     * 清空变更记录，用于从仓库中刚加载出来的session
+     */
+    void clearChanges() {
+        this.changedAttributeNames.clear();
+        this.removedAttributeNames.clear();
+    }
+
+    /**
+     * session已经以当前id保存，之后的保存不需要再处理id的变更
+     */
+    void markSaved() {
+        this.originalId = this.id;
+        this.savedLastAccessedTime = this.lastAccessedTime;
+        this.savedMaxInactiveInterval = this.maxInactiveInterval;
+    }
+
+    /**
+     * 记录从Redis中读取到的最后访问时间
+     */
+    void markLoaded(long lastAccessedTime) {
+        this.lastAccessedTime = lastAccessedTime;
+        this.savedLastAccessedTime = lastAccessedTime;
+        this.savedMaxInactiveInterval = this.maxInactiveInterval;
+    }
+
+    /**
+     * 复制保存时需要的全部状态，包括原来的id和属性的变更记录，用于异步保存
+     *
+     * @param copier 复制变更过的属性值
+     */
+    RedisSession snapshot(UnaryOperator<Object> copier) {
+        RedisSession snapshot = new RedisSession(this.id);
+        snapshot.originalId = this.originalId;
+        snapshot.sessionAttrs = new ConcurrentHashMap<>(this.sessionAttrs);
+        for (String name : this.changedAttributeNames) {
+            Object val = snapshot.sessionAttrs.get(name);
+            if (val != null) {
+                snapshot.sessionAttrs.put(name, copier.apply(val));
+                snapshot.changedAttributeNames.add(name);
+            }
+        }
+        snapshot.removedAttributeNames.addAll(this.removedAttributeNames);
+        snapshot.creationTime = this.creationTime;
+        snapshot.lastAccessedTime = this.lastAccessedTime;
+        snapshot.maxInactiveInterval = this.maxInactiveInterval;
+        snapshot.savedLastAccessedTime = this.savedLastAccessedTime;
+        snapshot.savedMaxInactiveInterval = this.savedMaxInactiveInterval;
+        snapshot.prefetchedShareAttributes = this.prefetchedShareAttributes;
+        return snapshot;
+    }
+
+    long getSavedLastAccessedTime() {
+        return this.savedLastAccessedTime;
+    }
+
+    /**
+     * 上次保存之后最大过期时间是否被修改过
+     */
+    boolean isMaxInactiveIntervalChanged() {
+        return this.maxInactiveInterval != this.savedMaxInactiveInterval;
+    }
+
+    @Override
+    public void handOff(RedisSession snapshot) {
+        this.changedAttributeNames.removeAll(snapshot.changedAttributeNames);
+        this.removedAttributeNames.removeAll(snapshot.removedAttributeNames);
+        markSaved();
+    }
+
+    @Override
+    public void mergeEarlier(RedisSession earlier) {
+        this.originalId = earlier.originalId;
+        this.savedLastAccessedTime = earlier.savedLastAccessedTime;
+        this.savedMaxInactiveInterval = earlier.savedMaxInactiveInterval;
+        for (String name : earlier.changedAttributeNames) {
+            if (!this.changedAttributeNames.contains(name) && !this.removedAttributeNames.contains(name)) {
+                //使用更早的快照中复制出的值，当前快照中的是原session里的对象
+                this.sessionAttrs.put(name, earlier.sessionAttrs.get(name));
+                this.changedAttributeNames.add(name);
+            }
+        }
+        for (String name : earlier.removedAttributeNames) {
+            if (!this.changedAttributeNames.contains(name)) {
+                this.removedAttributeNames.add(name);
+            }
+        }
+    }
+
+    @Override
+    public void restore(RedisSession failed) {
+        restoreChanges(failed.changedAttributeNames, failed.removedAttributeNames);
+        if (this.originalId.equals(failed.id)) {
+            this.originalId = failed.originalId;
+        }
+        //回到快照之前的保存状态，创建session的写入失败时下一次保存仍然是第一次保存
+        this.savedLastAccessedTime = Math.min(this.savedLastAccessedTime, failed.savedLastAccessedTime);
+        this.savedMaxInactiveInterval = failed.savedMaxInactiveInterval;
+    }
+
+    private static Set<String> drain(Set<String> names) {
+        Set<String> result = new HashSet<>();
+        for (String name : names) {
+            if (names.remove(name)) {
+                result.add(name);
+            }
+        }
+        return result;
     }
 
     @Override
@@ -105,7 +303,10 @@ public class RedisSession implements Session, Serializable {
 
     @Override
     public void setLastAccessedTime(long time) {
-        this.lastAccessedTime = time;
+        if (this.lastAccessedTime != time) {
+            this.lastAccessedTime = time;
+            this.version++;
+        }
     }
 
     @Override
@@ -115,7 +316,15 @@ public class RedisSession implements Session, Serializable {
 
     @Override
     public void setMaxInactiveInterval(int interval) {
-        this.maxInactiveInterval = interval;
+        if (this.maxInactiveInterval != interval) {
+            this.maxInactiveInterval = interval;
+            this.version++;
+        }
+    }
+
+    @Override
+    public long getVersion() {
+        return this.version;
     }
 
     @Override
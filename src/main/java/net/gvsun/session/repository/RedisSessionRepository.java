@@ -1,22 +1,36 @@
 package net.gvsun.session.repository;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import net.gvsun.session.SessionCreatedEvent;
 import net.gvsun.session.SessionDestroyedEvent;
 import net.gvsun.session.ShareAttribute;
 import net.gvsun.session.UnifySessionProperties;
+import net.gvsun.session.codec.JdkAttributeCodec;
+import net.gvsun.session.codec.ShareAttributeCodec;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.data.redis.connection.ClusterSlotHashUtil;
+import org.springframework.data.redis.connection.RedisClusterConnection;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.connection.jedis.JedisClusterConnection;
+import org.springframework.data.redis.connection.jedis.JedisConnection;
 import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.serializer.JdkSerializationRedisSerializer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import redis.clients.jedis.Jedis;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 /**
  * 用Redis实现的session存储仓库
@@ -26,7 +40,7 @@ import java.util.concurrent.TimeUnit;
  */
 public class RedisSessionRepository implements SessionRepository<RedisSession> {
     private static final Logger logger = LoggerFactory.getLogger(RedisSessionRepository.class);
-    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final ShareAttributeCodec shareAttributeCodec = ShareAttributeCodec.getDefault();
     private Integer defaultMaxInactiveInterval; //s
     private final RedisTemplate<String, Object> jdkRedisTemplate;
     private final RedisTemplate<String, String> jsonRedisTemplate;
@@ -34,7 +48,42 @@ public class RedisSessionRepository implements SessionRepository<RedisSession> {
     private final UnifySessionProperties properties;
     public static final String PUBLIC = ":";
     public static final String PRIVATE = "";
+    //记录session访问过哪些项目的索引集合的key后缀
+    public static final String PROJECT_INDEX_SUFFIX = "#projects";
+    //session元数据固定用JDK序列化，和属性使用的编解码器无关，切换编解码器或混合部署时都能读取
+    private static final JdkSerializationRedisSerializer METADATA_SERIALIZER = new JdkSerializationRedisSerializer();
+    //在服务端过滤出每个项目hash中的共享属性，其他项目的私有属性不需要传输
+    private static final byte[] SHARE_ATTRIBUTES_SCRIPT = ("local result = {}\n" +
+            "for k = 1, #KEYS do\n" +
+            "    local fields = {}\n" +
+            "    local all = redis.call('HGETALL', KEYS[k])\n" +
+            "    for i = 1, #all, 2 do\n" +
+            "        if string.sub(all[i], 1, 1) == '" + PUBLIC + "' then\n" +
+            "            fields[#fields + 1] = all[i]\n" +
+            "            fields[#fields + 1] = all[i + 1]\n" +
+            "        end\n" +
+            "    end\n" +
+            "    result[k] = fields\n" +
+            "end\n" +
+            "return result").getBytes(StandardCharsets.UTF_8);
+    //本地缓存，为null时不使用
+    private SessionNearCache nearCache;
+    //只有最后访问时间变化时，距上次写入不超过maxInactiveInterval的该比例则不写入
+    private double touchThreshold;
+    //用hash tag包裹sessionId，集群模式下一个session的所有key落在同一个slot
+    private boolean hashTaggedKeys;
+    //加载session时同时预读共享属性的项目
+    private List<String> sharePrefetchProjects = Collections.emptyList();
+    //只加载元数据，属性在第一次读取时才从Redis中读取
+    private boolean lazyLoad;
+    //发布session失效通知的频道
+    private String invalidationChannel;
+    private final RedisSerializer<String> keySerializer;
+    private final RedisSerializer<String> hashKeySerializer;
+    private final RedisSerializer<Object> privateValueSerializer;
+    private final RedisSerializer<String> shareValueSerializer;
 
+    @SuppressWarnings("unchecked")
     public RedisSessionRepository(RedisTemplate<String, Object> jdkRedisTemplate,
                                   RedisTemplate<String, String> jsonRedisTemplate,
                                   UnifySessionProperties properties,
@@ -43,12 +92,56 @@ public class RedisSessionRepository implements SessionRepository<RedisSession> {
         this.jsonRedisTemplate = jsonRedisTemplate;
         this.properties = properties;
         this.applicationEventPublisher = applicationEventPublisher;
+        this.keySerializer = (RedisSerializer<String>) jdkRedisTemplate.getKeySerializer();
+        this.hashKeySerializer = (RedisSerializer<String>) jdkRedisTemplate.getHashKeySerializer();
+        this.privateValueSerializer = (RedisSerializer<Object>) jdkRedisTemplate.getHashValueSerializer();
+        this.shareValueSerializer = (RedisSerializer<String>) jsonRedisTemplate.getHashValueSerializer();
     }
 
     public void setDefaultMaxInactiveInterval(int defaultMaxInactiveInterval) {
         this.defaultMaxInactiveInterval = defaultMaxInactiveInterval;
     }
 
+    public void setTouchThreshold(double touchThreshold) {
+        this.touchThreshold = touchThreshold;
+    }
+
+    /**
+     * 使用{sessionId}形式的key。开启后和不开启时写入的session互不可见，共享同一个Redis的服务需要保持一致
+     */
+    public void setHashTaggedKeys(boolean hashTaggedKeys) {
+        this.hashTaggedKeys = hashTaggedKeys;
+    }
+
+    /**
+     * 加载session时预读这些项目的共享属性，所有项目在服务端过滤后用一次往返读取
+     */
+    public void setSharePrefetchProjects(List<String> sharePrefetchProjects) {
+        this.sharePrefetchProjects = sharePrefetchProjects != null ? sharePrefetchProjects : Collections.emptyList();
+    }
+
+    /**
+     * 启用按需加载属性，启用本地缓存时不生效
+     */
+    public void setLazyLoad(boolean lazyLoad) {
+        this.lazyLoad = lazyLoad;
+    }
+
+    public void setNearCache(SessionNearCache nearCache) {
+        this.nearCache = nearCache;
+    }
+
+    public SessionNearCache getNearCache() {
+        return this.nearCache;
+    }
+
+    /**
+     * session的属性变化或被删除时在channel上发布sessionId，通知各节点丢弃本地缓存
+     */
+    public void setInvalidationChannel(String invalidationChannel) {
+        this.invalidationChannel = invalidationChannel;
+    }
+
     @Override
     public RedisSession createSession() {
         RedisSession result = new RedisSession();
@@ -56,125 +149,239 @@ public class RedisSessionRepository implements SessionRepository<RedisSession> {
             result.setMaxInactiveInterval(defaultMaxInactiveInterval);
         }
         logger.debug("创建session:{}", result.getId());
-        applicationEventPublisher.publishEvent(new SessionCreatedEvent(this, result));
+        if (!isLazyCreate()) {
+            applicationEventPublisher.publishEvent(new SessionCreatedEvent(this, result));
+        }
         return result;
     }
 
     @Override
     public void save(RedisSession session) {
         long start = System.currentTimeMillis();
+        if (session.getId().equals(session.getOriginalId()) && session.getSavedLastAccessedTime() > 0
+                && !session.hasChanges()) {
+            touch(session);
+            return;
+        }
+        //延迟创建时第一次保存才发布创建事件，从未保存过的session不会触发监听器
+        boolean created = isLazyCreate() && session.getSavedLastAccessedTime() == 0;
+        Map<byte[], byte[]> renames = new LinkedHashMap<>();
         if (!session.getId().equals(session.getOriginalId())) {
-            Set<String> keys = jdkRedisTemplate.keys(session.getOriginalId() + "*");
-            if (keys != null && keys.size() > 0) {
-                for (String ori : keys) {
-                    String newKey = session.getId();
-                    if (ori.length() > session.getOriginalId().length()) {
-                        newKey += ori.substring(session.getOriginalId().length());
-                    }
-                    jdkRedisTemplate.rename(ori, newKey);
-                }
-            }
+            renames = findRenames(session.getOriginalId(), session.getId());
         }
 
-        Set<String> attributeNames = session.getAttributeNames();
-        Map<String, String> shareAttributeMap = new HashMap<>();
-        Map<String, Object> privateAttributeMap = new HashMap<>();
-        for (String name : attributeNames) {
+        //只写入本次请求中变更过的属性，被移除的属性用HDEL删除
+        Set<String> changed = session.drainChangedAttributeNames();
+        Set<String> removed = session.drainRemovedAttributeNames();
+        Map<byte[], byte[]> attributeMap = new HashMap<>();
+        List<byte[]> removedFields = new ArrayList<>(removed.size());
+        for (String name : changed) {
             Object attribute = session.getAttribute(name);
             if (name.startsWith(PUBLIC)) {
                 if (attribute instanceof ShareAttribute) {
                     try {
-                        shareAttributeMap.put(name, objectMapper.writeValueAsString(attribute));
+                        attributeMap.put(hashKeySerializer.serialize(name), shareAttributeCodec.encode(attribute));
                     } catch (JsonProcessingException e) {
                         logger.error("序列化失败", e);
                     }
                 }
             } else if (attribute instanceof Serializable) {
-                privateAttributeMap.put(name, attribute);
+                attributeMap.put(hashKeySerializer.serialize(name), privateValueSerializer.serialize(attribute));
+            } else if (attribute != null) {
+                //不能序列化的属性不保存，同时删除已保存的旧值，避免之后读到过期的数据
+                logger.warn("session属性:{}没有实现Serializable，不会保存", name);
+                removedFields.add(hashKeySerializer.serialize(name));
             }
         }
-        String key = session.getId() + ":" + properties.getProjectName();
-        jsonRedisTemplate.opsForHash().putAll(key, shareAttributeMap);
-        jdkRedisTemplate.opsForHash().putAll(key, privateAttributeMap);
+        for (String name : removed) {
+            removedFields.add(hashKeySerializer.serialize(name));
+        }
+        Map<byte[], byte[]> sessionMap = new HashMap<>();
+        sessionMap.put(hashKeySerializer.serialize("creationTime"), serializeTime(session.getCreationTime()));
+        sessionMap.put(hashKeySerializer.serialize("lastAccessedTime"), serializeTime(session.getLastAccessedTime()));
 
-        jdkRedisTemplate.opsForHash().put(session.getId(), "creationTime", session.getCreationTime());
-        jdkRedisTemplate.opsForHash().put(session.getId(), "lastAccessedTime", session.getLastAccessedTime());
-        long residueTime = (long) session.getMaxInactiveInterval() * 1000 - (session.getLastAccessedTime() - session.getCreationTime());
-        if (residueTime <= 0)
-            residueTime = 0;
-        jdkRedisTemplate.expire(session.getId(), residueTime, TimeUnit.MILLISECONDS);
-        jdkRedisTemplate.expire(key, residueTime, TimeUnit.MILLISECONDS);
+        byte[] sessionKey = rawKey(sessionKey(session.getId()));
+        byte[] projectKey = rawKey(projectKey(session.getId(), properties.getProjectName()));
+        byte[] indexKey = rawKey(projectIndexKey(session.getId()));
+        byte[] projectName = hashKeySerializer.serialize(properties.getProjectName());
+        Map<byte[], byte[]> renameMap = renames;
+        //属性或id有变化时需要通知其他节点丢弃本地缓存
+        boolean invalidate = !renames.isEmpty() || !changed.isEmpty() || !removed.isEmpty();
+        //所有写操作放在一个MULTI/EXEC事务中一次性发送，其他节点不会读到写了一半的session。
+        //id变更时新旧key在不同的slot，集群模式下只能逐条执行
+        String slotSid = renames.isEmpty() ? session.getId() : null;
+        try {
+            executeTransaction(slotSid, connection -> {
+                for (Map.Entry<byte[], byte[]> e : renameMap.entrySet()) {
+                    connection.rename(e.getKey(), e.getValue());
+                }
+                if (!removedFields.isEmpty()) {
+                    connection.hDel(projectKey, removedFields.toArray(new byte[0][]));
+                }
+                if (!attributeMap.isEmpty()) {
+                    connection.hMSet(projectKey, attributeMap);
+                }
+                connection.hMSet(sessionKey, sessionMap);
+                connection.sAdd(indexKey, projectName);
+                expire(connection, session, sessionKey, indexKey, projectKey);
+                if (invalidate) {
+                    publishInvalidation(connection, session.getOriginalId());
+                    publishInvalidation(connection, session.getId());
+                }
+            });
+        } catch (RuntimeException e) {
+            session.restoreChanges(changed, removed);
+            throw e;
+        }
+        if (nearCache != null) {
+            if (invalidate) {
+                nearCache.invalidate(session.getOriginalId());
+                nearCache.invalidate(session.getId());
+            } else {
+                nearCache.touch(session.getId(), session.getLastAccessedTime());
+            }
+        }
+        session.markSaved();
+        if (created) {
+            applicationEventPublisher.publishEvent(new SessionCreatedEvent(this, session));
+        }
         long end = System.currentTimeMillis();
         logger.debug("保存session:{}耗时{}ms", session.getId(), end - start);
     }
 
+    /**
+     * 属性和id都没有变化时只写入最后访问时间并刷新过期时间，
+     * 距上次写入的时间不超过maxInactiveInterval * touchThreshold时跳过写入，
+     * 最大过期时间被修改过时总是写入
+     */
+    private void touch(RedisSession session) {
+        boolean intervalChanged = session.isMaxInactiveIntervalChanged();
+        long elapsed = session.getLastAccessedTime() - session.getSavedLastAccessedTime();
+        long threshold = (long) (session.getMaxInactiveInterval() * 1000L * touchThreshold);
+        if (!intervalChanged && (elapsed <= 0 || elapsed <= threshold)) {
+            return;
+        }
+        byte[] sessionKey = rawKey(sessionKey(session.getId()));
+        byte[] indexKey = rawKey(projectIndexKey(session.getId()));
+        byte[] projectKey = rawKey(projectKey(session.getId(), properties.getProjectName()));
+        byte[] field = hashKeySerializer.serialize("lastAccessedTime");
+        byte[] value = serializeTime(session.getLastAccessedTime());
+        executeTransaction(session.getId(), connection -> {
+            connection.hSet(sessionKey, field, value);
+            expire(connection, session, sessionKey, indexKey, projectKey);
+        });
+        if (nearCache != null) {
+            if (intervalChanged) {
+                //缓存中记录的最大过期时间已经过时
+                nearCache.invalidate(session.getId());
+            } else {
+                nearCache.touch(session.getId(), session.getLastAccessedTime());
+            }
+        }
+        session.markSaved();
+        logger.debug("刷新session:{}的最后访问时间", session.getId());
+    }
+
+    /**
+     * 从最后访问时间开始计算过期时间，实现滑动过期；maxInactiveInterval不大于0时永不过期
+     */
+    private static void expire(RedisConnection connection, RedisSession session, byte[]... keys) {
+        long expireAt = session.getLastAccessedTime() + session.getMaxInactiveInterval() * 1000L;
+        for (byte[] key : keys) {
+            if (session.getMaxInactiveInterval() > 0) {
+                connection.pExpireAt(key, expireAt);
+            } else {
+                connection.persist(key);
+            }
+        }
+    }
+
     @Override
     public RedisSession findById(String sid, String projectName) {
         long start = System.currentTimeMillis();
-        int attributeCount = 1000;
-        String key = sid + ":" + projectName;
-        Boolean hasSession = jdkRedisTemplate.hasKey(sid);
-        if (hasSession == null || !hasSession) {
-            return null;
+        if (nearCache != null) {
+            RedisSession cached = nearCache.get(sid, projectName, this::decodeAttribute);
+            if (cached != null && !cached.isExpired()) {
+                return cached;
+            } else if (cached != null) {
+                //缓存里的最后访问时间可能已经过时，以Redis中的为准
+                nearCache.invalidate(sid);
+            }
         }
-
-        Boolean hasKey = jdkRedisTemplate.hasKey(key);
-        Map<String, String> shareAttributeMap = new HashMap<>();
-        Map<String, Object> privateAttributeMap = new HashMap<>();
-        if (hasKey != null && hasKey) {
-            //match只支持glob通配符，不支持正则表达式，
-            //[^abc]匹配除了a, b, c以外的字符。
-            ScanOptions shareBuild = ScanOptions.scanOptions().match("[^:]*").count(attributeCount).build();
-            try (Cursor<Map.Entry<Object, Object>> cursor = jdkRedisTemplate.opsForHash().scan(key, shareBuild)) {
-                while (cursor.hasNext()) {
-                    Map.Entry<Object, Object> next = cursor.next();
-                    String k = (String) next.getKey();
-                    privateAttributeMap.put(k, next.getValue());
-                }
-            } catch (IOException e) {
-                logger.error("jsonRedisTemplate.opsForHash().scan失败", e);
+        //启用本地缓存时总是完整加载，以便放入缓存
+        boolean lazy = lazyLoad && nearCache == null;
+        byte[] sessionKey = rawKey(sessionKey(sid));
+        byte[] projectKey = rawKey(projectKey(sid, projectName));
+        List<String> prefetchProjects = new ArrayList<>(sharePrefetchProjects);
+        prefetchProjects.remove(projectName);
+        //用一次管道往返同时取回session的元数据以及项目的私有和共享属性
+        List<Object> results = executePipelined(sid, (connection, r) -> {
+            r.add(connection.hGetAll(sessionKey));
+            if (!lazy) {
+                r.add(connection.hGetAll(projectKey));
             }
+        });
+        if (results == null || results.isEmpty()) {
+            return null;
+        }
+        Map<byte[], byte[]> sessionHash = asHash(results.get(0));
+        Map<byte[], byte[]> projectHash = !lazy && results.size() > 1 ? asHash(results.get(1)) : Collections.emptyMap();
+        if (sessionHash.isEmpty()) {
+            return null;
+        }
 
-            ScanOptions publicShareBuild = ScanOptions.scanOptions().match(":*").count(attributeCount).build();
-            try (Cursor<Map.Entry<Object, Object>> cursor = jsonRedisTemplate.opsForHash().scan(key, publicShareBuild)) {
-                while (cursor.hasNext()) {
-                    Map.Entry<Object, Object> next = cursor.next();
-                    String k = (String) next.getKey();
-                    shareAttributeMap.put(k, (String) next.getValue());
-                }
-            } catch (IOException e) {
-                logger.error("jsonRedisTemplate.opsForHash().scan失败", e);
+        Long creationTime = null;
+        Long lastAccessedTime = null;
+        for (Map.Entry<byte[], byte[]> e : sessionHash.entrySet()) {
+            String field = hashKeySerializer.deserialize(e.getKey());
+            if ("creationTime".equals(field)) {
+                creationTime = deserializeTime(e.getValue());
+            } else if ("lastAccessedTime".equals(field)) {
+                lastAccessedTime = deserializeTime(e.getValue());
             }
         }
 
-        Object creationTime = jdkRedisTemplate.opsForHash().get(sid, "creationTime");
-        Object lastAccessedTime = jdkRedisTemplate.opsForHash().get(sid, "lastAccessedTime");
-
-        RedisSession redisSession = new RedisSession(sid);
+        RedisSession redisSession = lazy
+                ? new LazyRedisSession(sid, (session, names) -> loadAttributes(session.getOriginalId(), projectName, names))
+                : new RedisSession(sid);
         if (this.defaultMaxInactiveInterval != null) {
             redisSession.setMaxInactiveInterval(defaultMaxInactiveInterval);
         }
-        for (Map.Entry<String, String> e : shareAttributeMap.entrySet()) {
-            redisSession.setAttribute(e.getKey(), e.getValue());
-        }
-        for (Map.Entry<String, Object> e : privateAttributeMap.entrySet()) {
-            redisSession.setAttribute(e.getKey(), e.getValue());
+        Map<String, byte[]> attributes = new HashMap<>();
+        for (Map.Entry<byte[], byte[]> e : projectHash.entrySet()) {
+            String field = hashKeySerializer.deserialize(e.getKey());
+            if (field != null) {
+                attributes.put(field, e.getValue());
+                redisSession.putLoadedAttribute(field, decodeAttribute(field, e.getValue()));
+            }
         }
         if (creationTime == null) {
             logger.error("未找到session:{}的创建时间", sid);
-            deleteById(sid);
+            deleteKeys(sid);
             return null;
         }
-        redisSession.setCreationTime((Long) creationTime);
+        if (!prefetchProjects.isEmpty()) {
+            Map<String, Map<String, String>> prefetched = new HashMap<>();
+            List<Map<String, String>> shareAttributes = prefetchShareAttributes(sid, prefetchProjects);
+            for (int i = 0; i < prefetchProjects.size(); i++) {
+                prefetched.put(prefetchProjects.get(i), Collections.unmodifiableMap(shareAttributes.get(i)));
+            }
+            //预读的共享属性只读，本地缓存和复制出的session可以直接共享
+            redisSession.setPrefetchedShareAttributes(Collections.unmodifiableMap(prefetched));
+        }
+        redisSession.setCreationTime(creationTime);
         if (lastAccessedTime != null) {
-            redisSession.setLastAccessedTime((Long) lastAccessedTime);
+            redisSession.markLoaded(lastAccessedTime);
         } else {
-            redisSession.setLastAccessedTime(redisSession.getCreationTime());
+            redisSession.markLoaded(redisSession.getCreationTime());
         }
         if (redisSession.isExpired()) {
-            deleteById(sid);
+            delete(redisSession);
             return null;
         }
+        if (nearCache != null) {
+            nearCache.put(sid, projectName, redisSession, attributes, weight(sessionHash) + weight(projectHash));
+        }
         long end = System.currentTimeMillis();
         logger.debug("查找session:{}耗时{}ms", sid, end - start);
         return redisSession;
@@ -185,13 +392,369 @@ public class RedisSessionRepository implements SessionRepository<RedisSession> {
         return findById(sid, properties.getProjectName());
     }
 
+    /**
+     * 用一次管道往返读取多个项目的共享属性，只读取需要的字段
+     */
+    @Override
+    public Map<String, Map<String, String>> findShareAttributes(String sid, Map<String, ? extends Collection<String>> attributeNames) {
+        List<String> projects = new ArrayList<>(attributeNames.keySet());
+        List<List<String>> names = new ArrayList<>();
+        for (String project : projects) {
+            names.add(new ArrayList<>(attributeNames.get(project)));
+        }
+        List<Object> results = executePipelined(sid, (connection, r) -> {
+            for (int i = 0; i < projects.size(); i++) {
+                List<String> projectNames = names.get(i);
+                byte[][] fields = new byte[projectNames.size()][];
+                for (int j = 0; j < projectNames.size(); j++) {
+                    fields[j] = hashKeySerializer.serialize(PUBLIC + projectNames.get(j));
+                }
+                r.add(connection.hMGet(rawKey(projectKey(sid, projects.get(i))), fields));
+            }
+        });
+        Map<String, Map<String, String>> result = new HashMap<>();
+        for (int i = 0; i < projects.size(); i++) {
+            Map<String, String> values = new HashMap<>();
+            List<?> raw = results != null && i < results.size() && results.get(i) instanceof List
+                    ? (List<?>) results.get(i) : Collections.emptyList();
+            List<String> projectNames = names.get(i);
+            for (int j = 0; j < projectNames.size() && j < raw.size(); j++) {
+                if (raw.get(j) instanceof byte[]) {
+                    values.put(projectNames.get(j), shareValueSerializer.deserialize((byte[]) raw.get(j)));
+                }
+            }
+            result.put(projects.get(i), values);
+        }
+        return result;
+    }
+
+    /**
+     * 读取预读项目的共享属性，只在服务端匹配共享属性，不传输其他项目的私有属性。
+     * 所有项目用一次脚本调用读取；集群模式下没有启用hash tag时key可能不在同一个slot，逐个项目用HSCAN匹配共享前缀
+     *
+     * @return 和projects顺序一致的共享属性，属性名去掉共享前缀
+     */
+    private List<Map<String, String>> prefetchShareAttributes(String sid, List<String> projects) {
+        byte[][] keys = new byte[projects.size()][];
+        for (int i = 0; i < projects.size(); i++) {
+            keys[i] = rawKey(projectKey(sid, projects.get(i)));
+        }
+        return execute(sid, connection -> {
+            List<Map<String, String>> result = new ArrayList<>();
+            if (connection instanceof RedisClusterConnection) {
+                ScanOptions options = ScanOptions.scanOptions().match(PUBLIC + "*").count(1000).build();
+                for (byte[] key : keys) {
+                    Map<String, String> values = new HashMap<>();
+                    try (Cursor<Map.Entry<byte[], byte[]>> cursor = connection.hScan(key, options)) {
+                        while (cursor.hasNext()) {
+                            Map.Entry<byte[], byte[]> e = cursor.next();
+                            putShareAttribute(values, e.getKey(), e.getValue());
+                        }
+                    } catch (IOException e) {
+                        logger.error("关闭HSCAN游标失败", e);
+                    }
+                    result.add(values);
+                }
+                return result;
+            }
+            List<Object> lists = connection.eval(SHARE_ATTRIBUTES_SCRIPT, ReturnType.MULTI, keys.length, keys);
+            for (int i = 0; i < keys.length; i++) {
+                Map<String, String> values = new HashMap<>();
+                Object fields = lists != null && i < lists.size() ? lists.get(i) : null;
+                if (fields instanceof List) {
+                    List<?> list = (List<?>) fields;
+                    for (int j = 0; j + 1 < list.size(); j += 2) {
+                        putShareAttribute(values, (byte[]) list.get(j), (byte[]) list.get(j + 1));
+                    }
+                }
+                result.add(values);
+            }
+            return result;
+        });
+    }
+
+    /**
+     * 放入一个共享属性，属性名去掉共享前缀
+     */
+    private void putShareAttribute(Map<String, String> values, byte[] rawField, byte[] rawValue) {
+        String field = hashKeySerializer.deserialize(rawField);
+        if (field != null && field.startsWith(PUBLIC)) {
+            values.put(field.substring(PUBLIC.length()), shareValueSerializer.deserialize(rawValue));
+        }
+    }
+
+    /**
+     * 读取项目下的属性
+     *
+     * @param names 属性名，为null时读取全部属性
+     */
+    private Map<String, Object> loadAttributes(String sid, String projectName, Collection<String> names) {
+        byte[] key = rawKey(projectKey(sid, projectName));
+        Map<String, Object> result = new HashMap<>();
+        if (names == null) {
+            Map<byte[], byte[]> hash = jdkRedisTemplate.execute((RedisCallback<Map<byte[], byte[]>>) connection ->
+                    connection.hGetAll(key));
+            if (hash != null) {
+                for (Map.Entry<byte[], byte[]> e : hash.entrySet()) {
+                    String field = hashKeySerializer.deserialize(e.getKey());
+                    if (field != null) {
+                        result.put(field, decodeAttribute(field, e.getValue()));
+                    }
+                }
+            }
+        } else if (!names.isEmpty()) {
+            List<String> fields = new ArrayList<>(names);
+            byte[][] rawFields = new byte[fields.size()][];
+            for (int i = 0; i < fields.size(); i++) {
+                rawFields[i] = hashKeySerializer.serialize(fields.get(i));
+            }
+            List<byte[]> values = jdkRedisTemplate.execute((RedisCallback<List<byte[]>>) connection ->
+                    connection.hMGet(key, rawFields));
+            if (values != null) {
+                for (int i = 0; i < fields.size() && i < values.size(); i++) {
+                    if (values.get(i) != null) {
+                        result.put(fields.get(i), decodeAttribute(fields.get(i), values.get(i)));
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 复制session，属性经过序列化再反序列化，副本和原session不共享任何可变对象
+     */
+    public RedisSession copy(RedisSession session) {
+        RedisSession copy = new RedisSession(session.getId());
+        copy.setMaxInactiveInterval(session.getMaxInactiveInterval());
+        for (String name : session.getAttributeNames()) {
+            Object val = session.getAttribute(name);
+            if (val instanceof Serializable) {
+                copy.putLoadedAttribute(name, copyValue(val));
+            }
+        }
+        copy.setPrefetchedShareAttributes(session.getPrefetchedShareAttributes());
+        copy.setCreationTime(session.getCreationTime());
+        copy.markLoaded(session.getLastAccessedTime());
+        return copy;
+    }
+
+    /**
+     * 复制出异步保存使用的快照，变更过的属性经过序列化再反序列化，之后对session的修改不会影响快照
+     */
+    public RedisSession snapshot(RedisSession session) {
+        return session.snapshot(this::copyValue);
+    }
+
+    /**
+     * 字符串不可变，不需要复制；不能序列化的属性保存时会被忽略，也不复制
+     */
+    private Object copyValue(Object value) {
+        if (value instanceof String || !(value instanceof Serializable)) {
+            return value;
+        }
+        return privateValueSerializer.deserialize(privateValueSerializer.serialize(value));
+    }
+
+    /**
+     * 共享属性以JSON字符串的形式保存，私有属性用JDK序列化保存
+     */
+    private Object decodeAttribute(String field, byte[] value) {
+        if (field.startsWith(PUBLIC)) {
+            return shareValueSerializer.deserialize(value);
+        }
+        return privateValueSerializer.deserialize(value);
+    }
+
     @Override
     public void deleteById(String sid) {
-        applicationEventPublisher.publishEvent(new SessionDestroyedEvent(this, findById(sid)));
-        Set<String> keys = jdkRedisTemplate.keys(sid + "*");
-        if (keys != null && keys.size() > 0) {
-            jdkRedisTemplate.delete(keys);
+        RedisSession session = findById(sid);
+        if (session != null) {
+            delete(session);
+        }
+    }
+
+    private void delete(RedisSession session) {
+        applicationEventPublisher.publishEvent(new SessionDestroyedEvent(this, session));
+        deleteKeys(session.getId());
+    }
+
+    /**
+     * 通过项目索引找到session的所有key并删除，耗时只和session访问过的项目数有关
+     */
+    private void deleteKeys(String sid) {
+        List<byte[]> keys = new ArrayList<>();
+        keys.add(rawKey(sessionKey(sid)));
+        keys.add(rawKey(projectIndexKey(sid)));
+        for (String project : findProjects(sid)) {
+            keys.add(rawKey(projectKey(sid, project)));
+        }
+        execute(sid, connection -> {
+            connection.del(keys.toArray(new byte[0][]));
+            publishInvalidation(connection, sid);
+            return null;
+        });
+        if (nearCache != null) {
+            nearCache.invalidate(sid);
         }
         logger.debug("删除session:{}", sid);
     }
+
+    /**
+     * 计算session id变更时需要重命名的key，只重命名仍然存在的key
+     */
+    private Map<byte[], byte[]> findRenames(String originalId, String id) {
+        List<String> oldKeys = new ArrayList<>();
+        List<String> newKeys = new ArrayList<>();
+        oldKeys.add(sessionKey(originalId));
+        newKeys.add(sessionKey(id));
+        oldKeys.add(projectIndexKey(originalId));
+        newKeys.add(projectIndexKey(id));
+        for (String project : findProjects(originalId)) {
+            oldKeys.add(projectKey(originalId, project));
+            newKeys.add(projectKey(id, project));
+        }
+        List<Object> exists = executePipelined(originalId, (connection, r) -> {
+            for (String key : oldKeys) {
+                r.add(connection.exists(rawKey(key)));
+            }
+        });
+        Map<byte[], byte[]> renames = new LinkedHashMap<>();
+        for (int i = 0; i < oldKeys.size(); i++) {
+            if (exists != null && i < exists.size() && Boolean.TRUE.equals(exists.get(i))) {
+                renames.put(rawKey(oldKeys.get(i)), rawKey(newKeys.get(i)));
+            }
+        }
+        return renames;
+    }
+
+    /**
+     * session访问过的项目，当前项目总是包含在内，兼容没有项目索引的旧session
+     */
+    private Set<String> findProjects(String sid) {
+        Set<String> projects = new LinkedHashSet<>();
+        projects.add(properties.getProjectName());
+        Set<byte[]> members = jdkRedisTemplate.execute((RedisCallback<Set<byte[]>>) connection ->
+                connection.sMembers(rawKey(projectIndexKey(sid))));
+        if (members != null) {
+            for (byte[] member : members) {
+                projects.add(hashKeySerializer.deserialize(member));
+            }
+        }
+        return projects;
+    }
+
+    private void publishInvalidation(RedisConnection connection, String sid) {
+        if (invalidationChannel != null) {
+            connection.publish(rawKey(invalidationChannel), rawKey(sid));
+        }
+    }
+
+    private static byte[] serializeTime(long time) {
+        return METADATA_SERIALIZER.serialize(time);
+    }
+
+    /**
+     * 读取元数据中的时间，兼容用编解码器写入的旧数据
+     */
+    private Long deserializeTime(byte[] value) {
+        Object time = JdkAttributeCodec.isJdkFormat(value)
+                ? METADATA_SERIALIZER.deserialize(value) : privateValueSerializer.deserialize(value);
+        return time instanceof Long ? (Long) time : null;
+    }
+
+    private static long weight(Map<byte[], byte[]> hash) {
+        long weight = 0;
+        for (Map.Entry<byte[], byte[]> e : hash.entrySet()) {
+            weight += e.getKey().length + e.getValue().length;
+        }
+        return weight;
+    }
+
+    /**
+     * 用一次管道往返执行一组只读命令，命令的返回值需要记录到results中。
+     * 集群模式下没有启用hash tag时Jedis不支持管道，命令会逐条执行，以记录的返回值作为结果
+     *
+     * @param sid 命令只涉及这个session的key
+     */
+    private List<Object> executePipelined(String sid, BiConsumer<RedisConnection, List<Object>> commands) {
+        return execute(sid, connection -> {
+            List<Object> results = new ArrayList<>();
+            if (connection instanceof RedisClusterConnection) {
+                commands.accept(connection, results);
+                return results;
+            }
+            connection.openPipeline();
+            commands.accept(connection, results);
+            return connection.closePipeline();
+        });
+    }
+
+    /**
+     * 在一个MULTI/EXEC事务中一次性发送一组写命令。集群模式下没有启用hash tag时Jedis不支持事务，命令会逐条执行
+     *
+     * @param sid 命令只涉及这个session的key，为null时集群模式下命令逐条执行
+     */
+    private void executeTransaction(String sid, Consumer<RedisConnection> commands) {
+        execute(sid, connection -> {
+            if (connection instanceof RedisClusterConnection) {
+                commands.accept(connection);
+                return null;
+            }
+            connection.multi();
+            commands.accept(connection);
+            return connection.exec();
+        });
+    }
+
+    /**
+     * 集群模式下启用hash tag时一个session的所有key都在同一个slot，直接使用该slot所在节点的连接，
+     * 在这个连接上可以使用管道、事务和脚本。slot正在迁移时命令会失败，不会跟随重定向
+     *
+     * @param sid 命令只涉及这个session的key，为null时使用集群连接
+     */
+    private <T> T execute(String sid, Function<RedisConnection, T> action) {
+        //暴露原始连接，而不是代理，才能取得集群的原生连接
+        return jdkRedisTemplate.execute((RedisCallback<T>) connection -> {
+            if (hashTaggedKeys && sid != null && connection instanceof JedisClusterConnection) {
+                int slot = ClusterSlotHashUtil.calculateSlot(sessionKey(sid));
+                //关闭时连接归还给节点的连接池
+                try (Jedis jedis = ((JedisClusterConnection) connection).getNativeConnection().getConnectionFromSlot(slot)) {
+                    return action.apply(new JedisConnection(jedis));
+                }
+            }
+            return action.apply(connection);
+        }, true);
+    }
+
+    /**
+     * session元数据的key，启用hash tag时一个session的所有key都落在同一个slot
+     */
+    private String sessionKey(String sid) {
+        return hashTaggedKeys ? "{" + sid + "}" : sid;
+    }
+
+    private String projectKey(String sid, String projectName) {
+        return sessionKey(sid) + ":" + projectName;
+    }
+
+    private String projectIndexKey(String sid) {
+        return sessionKey(sid) + PROJECT_INDEX_SUFFIX;
+    }
+
+    private boolean isLazyCreate() {
+        return properties.getLazyCreate() != null && properties.getLazyCreate();
+    }
+
+    private byte[] rawKey(String key) {
+        return keySerializer.serialize(key);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<byte[], byte[]> asHash(Object result) {
+        if (result instanceof Map) {
+            return (Map<byte[], byte[]>) result;
+        }
+        return Collections.emptyMap();
+    }
 }
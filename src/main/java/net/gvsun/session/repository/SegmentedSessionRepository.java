@@ -0,0 +1,169 @@
+package net.gvsun.session.repository;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * 按sessionId的hash把session分到多个{@link MSessionRepository}中的内存仓库
+ * <p>
+ * 每个分段有自己的Map、过期索引和容量限制，清理过期session时各分段由不同的线程分别进行，
+ * 一个分段的清理不会影响其他分段上的请求
+ *
+ * @author 陈敬
+ * @since 1.1.4-SNAPSHOT
+ */
+public class SegmentedSessionRepository implements SessionRepository<MSession>, DisposableBean {
+    private static final Logger logger = LoggerFactory.getLogger(SegmentedSessionRepository.class);
+    private final MSessionRepository[] segments;
+    private ScheduledExecutorService sweeper;
+
+    /**
+     * @param segments 分段数
+     * @param factory  创建每个分段的仓库
+     */
+    public SegmentedSessionRepository(int segments, Supplier<MSessionRepository> factory) {
+        if (segments <= 0) {
+            throw new IllegalArgumentException("segments必须大于0");
+        }
+        if (factory == null) {
+            throw new IllegalArgumentException("factory不能为null");
+        }
+        this.segments = new MSessionRepository[segments];
+        for (int i = 0; i < segments; i++) {
+            this.segments[i] = factory.get();
+        }
+    }
+
+    @Override
+    public MSession createSession() {
+        return this.segments[0].createSession();
+    }
+
+    @Override
+    public void save(MSession session) {
+        String originalId = session.getOriginalId();
+        MSessionRepository segment = segment(session.getId());
+        segment.save(session);
+        if (!session.getId().equals(originalId) && segment(originalId) != segment) {
+            //id变化后落到了另一个分段，新分段里保存的是完整的session，删除旧分段中的
+            segment(originalId).deleteById(originalId);
+        }
+    }
+
+    @Override
+    public MSession findById(String sid) {
+        return segment(sid).findById(sid);
+    }
+
+    @Override
+    public MSession findById(String sid, String projectName) {
+        return null;
+    }
+
+    @Override
+    public void deleteById(String sid) {
+        segment(sid).deleteById(sid);
+    }
+
+    /**
+     * 启动后台线程，每个分段每隔interval毫秒清理一次过期的session，各分段的清理时间错开
+     *
+     * @param threads 执行清理的线程数
+     */
+    public synchronized void startExpirySweeper(long interval, int threads) {
+        if (interval <= 0 || threads <= 0) {
+            throw new IllegalArgumentException("interval和threads必须大于0");
+        }
+        if (this.sweeper != null) {
+            return;
+        }
+        AtomicInteger index = new AtomicInteger();
+        this.sweeper = Executors.newScheduledThreadPool(Math.min(threads, this.segments.length), r -> {
+            Thread thread = new Thread(r, "usession-expiry-sweeper-" + index.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 0; i < this.segments.length; i++) {
+            MSessionRepository segment = this.segments[i];
+            this.sweeper.scheduleWithFixedDelay(() -> {
+                try {
+                    segment.cleanupExpiredSessions();
+                } catch (RuntimeException e) {
+                    logger.error("清理过期session失败", e);
+                }
+            }, interval + interval * i / this.segments.length, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 在调用线程中依次清理所有分段
+     *
+     * @return 清理的session数
+     */
+    public int cleanupExpiredSessions() {
+        int count = 0;
+        for (MSessionRepository segment : this.segments) {
+            count += segment.cleanupExpiredSessions();
+        }
+        return count;
+    }
+
+    public int getSegmentCount() {
+        return this.segments.length;
+    }
+
+    public int getSessionCount() {
+        int count = 0;
+        for (MSessionRepository segment : this.segments) {
+            count += segment.getSessionCount();
+        }
+        return count;
+    }
+
+    public long getExpiredCount() {
+        long count = 0;
+        for (MSessionRepository segment : this.segments) {
+            count += segment.getExpiredCount();
+        }
+        return count;
+    }
+
+    /**
+     * 各分段的淘汰策略，没有限制容量时为空
+     */
+    public List<SessionEvictionPolicy> getEvictionPolicies() {
+        List<SessionEvictionPolicy> policies = new ArrayList<>();
+        for (MSessionRepository segment : this.segments) {
+            if (segment.getEvictionPolicy() != null) {
+                policies.add(segment.getEvictionPolicy());
+            }
+        }
+        return policies;
+    }
+
+    @Override
+    public synchronized void destroy() {
+        if (this.sweeper != null) {
+            this.sweeper.shutdownNow();
+            this.sweeper = null;
+        }
+        for (MSessionRepository segment : this.segments) {
+            segment.destroy();
+        }
+    }
+
+    private MSessionRepository segment(String sid) {
+        int h = sid.hashCode();
+        h ^= h >>> 16;
+        return this.segments[(h & 0x7FFFFFFF) % this.segments.length];
+    }
+}
@@ -0,0 +1,351 @@
+package net.gvsun.session.repository;
+
+import net.gvsun.session.SessionDestroyedEvent;
+import net.gvsun.session.codec.AttributeCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.context.ApplicationEventPublisher;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 以序列化形式保存session的本地仓库的基类，子类只负责按sessionId存取字节数据
+ * <p>
+ * session的数据依次是maxInactiveInterval、creationTime、lastAccessedTime和属性，属性由编解码器序列化。
+ * 保存时只编码本次请求中变更过的属性，其他属性保持已保存的字节不变，只有访问时间变化时由子类原地改写。
+ * 不能序列化（没有实现{@link Serializable}）的属性不会保存，已保存的同名属性也会删除，和{@link RedisSessionRepository}一致。
+ * 过期的处理和{@link MSessionRepository}一致：读取时发现过期立即删除，后台线程按过期索引定期清理，
+ * 过期的session都会发布{@link SessionDestroyedEvent}
+ *
+ * @author 陈敬
+ * @since 1.1.4-SNAPSHOT
+ */
+public abstract class SerializedSessionRepository implements SessionRepository<MSession>, DisposableBean {
+    protected static final int MAX_INACTIVE_OFFSET = 0;
+    protected static final int CREATION_TIME_OFFSET = 4;
+    protected static final int LAST_ACCESSED_OFFSET = 12;
+    //maxInactiveInterval、creationTime和lastAccessedTime的总长度
+    protected static final int HEADER = 20;
+    private static final int LOCK_STRIPES = 64;
+    protected final Logger logger = LoggerFactory.getLogger(getClass());
+    private final AttributeCodec codec;
+    //同一个session的保存需要串行执行，读取、合并、写回之间不能插入其他保存
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    private final SessionExpiryIndex expiryIndex = new SessionExpiryIndex();
+    private final AtomicLong expiredCount = new AtomicLong();
+    private Integer defaultMaxInactiveInterval; //s
+    private ApplicationEventPublisher applicationEventPublisher;
+    private ScheduledExecutorService sweeper;
+
+    protected SerializedSessionRepository(AttributeCodec codec) {
+        if (codec == null) {
+            throw new IllegalArgumentException("codec不能为null");
+        }
+        this.codec = codec;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            this.locks[i] = new Object();
+        }
+    }
+
+    /**
+     * 读取session的数据
+     *
+     * @return 不存在时返回null
+     */
+    protected abstract byte[] read(String sid);
+
+    protected abstract void write(String sid, byte[] data);
+
+    /**
+     * 删除session的数据
+     *
+     * @return 被删除的数据，不存在时返回null
+     */
+    protected abstract byte[] remove(String sid);
+
+    /**
+     * 只改写已保存数据中的lastAccessedTime和maxInactiveInterval
+     *
+     * @return session不存在时返回false
+     */
+    protected abstract boolean touch(String sid, long lastAccessedTime, int maxInactiveInterval);
+
+    /**
+     * 已保存的session是否已经过期，不存在时返回false
+     */
+    protected abstract boolean isExpired(String sid);
+
+    protected static boolean isExpired(int maxInactiveInterval, long lastAccessedTime) {
+        return maxInactiveInterval > 0 && (System.currentTimeMillis() - lastAccessedTime) / 1000 > maxInactiveInterval;
+    }
+
+    public void setDefaultMaxInactiveInterval(int defaultMaxInactiveInterval) {
+        this.defaultMaxInactiveInterval = defaultMaxInactiveInterval;
+    }
+
+    /**
+     * 设置后过期的session会发布{@link SessionDestroyedEvent}
+     */
+    public void setApplicationEventPublisher(ApplicationEventPublisher applicationEventPublisher) {
+        this.applicationEventPublisher = applicationEventPublisher;
+    }
+
+    /**
+     * 启动后台线程，每隔interval毫秒清理一次过期的session
+     */
+    public synchronized void startExpirySweeper(long interval) {
+        if (this.sweeper == null) {
+            this.sweeper = SessionExpiryIndex.startSweeper(interval, this::cleanupExpiredSessions);
+        }
+    }
+
+    @Override
+    public MSession createSession() {
+        MSession result = new MSession();
+        if (this.defaultMaxInactiveInterval != null) {
+            result.setMaxInactiveInterval(defaultMaxInactiveInterval);
+        }
+        logger.debug("创建session:{}", result.getId());
+        return result;
+    }
+
+    @Override
+    public void save(MSession session) {
+        String sid = session.getId();
+        String originalId = session.getOriginalId();
+        Set<String> changed = session.drainChangedAttributeNames();
+        Set<String> removed = session.drainRemovedAttributeNames();
+        try {
+            byte[] renamed = null;
+            if (!sid.equals(originalId)) {
+                //不能在持有新id的锁时获取旧id的锁，两个锁的顺序不固定
+                synchronized (lock(originalId)) {
+                    renamed = remove(originalId);
+                    this.expiryIndex.remove(originalId);
+                }
+            }
+            synchronized (lock(sid)) {
+                byte[] saved = renamed;
+                if (saved == null) {
+                    if (changed.isEmpty() && removed.isEmpty()
+                            && touch(sid, session.getLastAccessedTime(), session.getMaxInactiveInterval())) {
+                        this.expiryIndex.add(sid, session.getLastAccessedTime(), session.getMaxInactiveInterval());
+                        session.markSaved();
+                        return;
+                    }
+                    saved = read(sid);
+                }
+                Map<String, byte[]> attributes;
+                if (saved == null) {
+                    attributes = new LinkedHashMap<>();
+                    for (String name : session.getAttributeNames()) {
+                        putEncoded(attributes, name, session.getAttribute(name));
+                    }
+                } else {
+                    //未变更的属性保持已保存的字节，只编码本次请求中变更过的属性
+                    attributes = readAttributes(saved);
+                    for (String name : changed) {
+                        putEncoded(attributes, name, session.getAttribute(name));
+                    }
+                    for (String name : removed) {
+                        attributes.remove(name);
+                    }
+                }
+                write(sid, encode(session, attributes));
+                this.expiryIndex.add(sid, session.getLastAccessedTime(), session.getMaxInactiveInterval());
+            }
+        } catch (RuntimeException e) {
+            session.restoreChanges(changed, removed);
+            throw e;
+        }
+        session.markSaved();
+        logger.debug("保存session:{}", sid);
+    }
+
+    /**
+     * 复制出异步保存使用的快照，变更过的属性用编解码器复制，之后对session的修改不会影响快照
+     */
+    public MSession snapshot(MSession session) {
+        return session.snapshot(value -> value instanceof Serializable ? this.codec.decode(this.codec.encode(value)) : value);
+    }
+
+    @Override
+    public MSession findById(String sid) {
+        logger.debug("查找session:{}", sid);
+        byte[] saved = read(sid);
+        if (saved == null) {
+            return null;
+        }
+        MSession session = decode(sid, saved);
+        if (session.isExpired()) {
+            synchronized (lock(sid)) {
+                if (isExpired(sid)) {
+                    remove(sid);
+                    this.expiryIndex.remove(sid);
+                    expired(session);
+                }
+            }
+            return null;
+        }
+        return session;
+    }
+
+    @Override
+    public MSession findById(String sid, String projectName) {
+        return null;
+    }
+
+    @Override
+    public void deleteById(String sid) {
+        synchronized (lock(sid)) {
+            remove(sid);
+            this.expiryIndex.remove(sid);
+        }
+        logger.debug("删除session:{}", sid);
+    }
+
+    /**
+     * 清理过期索引中已经到期的session
+     *
+     * @return 清理的session数
+     */
+    public int cleanupExpiredSessions() {
+        int count = 0;
+        for (String sid : this.expiryIndex.pollExpired(System.currentTimeMillis())) {
+            synchronized (lock(sid)) {
+                if (isExpired(sid)) {
+                    byte[] saved = remove(sid);
+                    if (saved != null) {
+                        expired(decode(sid, saved));
+                        count++;
+                    }
+                }
+            }
+        }
+        if (count > 0) {
+            logger.debug("清理了{}个过期session", count);
+        }
+        return count;
+    }
+
+    public long getExpiredCount() {
+        return this.expiredCount.get();
+    }
+
+    @Override
+    public synchronized void destroy() {
+        if (this.sweeper != null) {
+            this.sweeper.shutdownNow();
+            this.sweeper = null;
+        }
+    }
+
+    /**
+     * 把不经过save加载的session登记到过期索引中，例如启动时从文件中恢复的session
+     */
+    protected void registerExpiry(String sid, long lastAccessedTime, int maxInactiveInterval) {
+        this.expiryIndex.add(sid, lastAccessedTime, maxInactiveInterval);
+    }
+
+    private Object lock(String sid) {
+        return this.locks[(sid.hashCode() & 0x7FFFFFFF) % LOCK_STRIPES];
+    }
+
+    /**
+     * 编码属性放入attributes，不能序列化的属性不保存并删除已保存的同名属性
+     */
+    private void putEncoded(Map<String, byte[]> attributes, String name, Object val) {
+        if (val instanceof Serializable) {
+            attributes.put(name, this.codec.encode(val));
+        } else {
+            if (val != null) {
+                logger.warn("session属性:{}没有实现Serializable，不会保存", name);
+            }
+            attributes.remove(name);
+        }
+    }
+
+    private byte[] encode(MSession session, Map<String, byte[]> attributes) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(session.getMaxInactiveInterval());
+            out.writeLong(session.getCreationTime());
+            out.writeLong(session.getLastAccessedTime());
+            out.writeInt(attributes.size());
+            for (Map.Entry<String, byte[]> e : attributes.entrySet()) {
+                out.writeUTF(e.getKey());
+                byte[] value = e.getValue();
+                out.writeInt(value.length);
+                out.write(value);
+            }
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private MSession decode(String sid, byte[] data) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            MSession session = new MSession(sid);
+            session.setMaxInactiveInterval(in.readInt());
+            session.setCreationTime(in.readLong());
+            session.setLastAccessedTime(in.readLong());
+            int size = in.readInt();
+            for (int i = 0; i < size; i++) {
+                session.setAttribute(in.readUTF(), readValue(in));
+            }
+            session.clearChanges();
+            return session;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * 读取已保存的属性，不解码属性值
+     */
+    private Map<String, byte[]> readAttributes(byte[] data) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, HEADER, data.length - HEADER));
+            int size = in.readInt();
+            Map<String, byte[]> attributes = new LinkedHashMap<>(size * 2);
+            for (int i = 0; i < size; i++) {
+                String name = in.readUTF();
+                byte[] value = new byte[in.readInt()];
+                in.readFully(value);
+                attributes.put(name, value);
+            }
+            return attributes;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Object readValue(DataInputStream in) throws IOException {
+        byte[] value = new byte[in.readInt()];
+        in.readFully(value);
+        return this.codec.decode(value);
+    }
+
+    private void expired(MSession session) {
+        this.expiredCount.incrementAndGet();
+        logger.debug("session:{}已过期", session.getId());
+        if (this.applicationEventPublisher != null) {
+            this.applicationEventPublisher.publishEvent(new SessionDestroyedEvent(this, session));
+        }
+    }
+}
@@ -31,4 +31,9 @@ public interface Session {
     int getMaxInactiveInterval();
 
     boolean isExpired();
+
+    /**
+     * 修改次数，id、属性、访问时间或过期时间变化后递增，用于判断两次保存之间session是否有变化
+     */
+    long getVersion();
 }
@@ -0,0 +1,266 @@
+package net.gvsun.session.repository;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 按session数和估算的字节数限制内存仓库的容量，决定超出时淘汰哪些session
+ * <p>
+ * LRU淘汰最久未访问的session。TINY_LFU先把新session放进一个很小的LRU窗口，
+ * 被挤出窗口时再和主区域中最久未访问的session比较近似的访问频率，频率更高的留下。
+ * 这样大量只访问一次的session（例如爬虫）不会把活跃用户的session挤出去，
+ * 代价是容量已满时，在窗口中没有再次访问的新session会被直接淘汰
+ *
+ * @author 陈敬
+ * @since 1.1.4-SNAPSHOT
+ */
+public class SessionEvictionPolicy {
+    public static final String LRU = "LRU";
+    public static final String TINY_LFU = "TINY_LFU";
+    private final String name;
+    private final int maxSessions;
+    private final long maxBytes;
+    private final int maxWindowSessions;
+    //sessionId到估算的字节数，按访问顺序排列
+    private final LinkedHashMap<String, Long> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Long> main = new LinkedHashMap<>(16, 0.75f, true);
+    //只在TINY_LFU时使用
+    private final FrequencySketch sketch;
+    private long bytes;
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+    private final AtomicLong rejectionCount = new AtomicLong();
+
+    /**
+     * @param maxSessions 最大session数，不大于0时不限制
+     * @param maxBytes    最大字节数，不大于0时不限制
+     */
+    public SessionEvictionPolicy(String name, int maxSessions, long maxBytes) {
+        if (!LRU.equals(name) && !TINY_LFU.equals(name)) {
+            throw new IllegalArgumentException("不支持的淘汰策略:" + name);
+        }
+        if (maxSessions <= 0 && maxBytes <= 0) {
+            throw new IllegalArgumentException("maxSessions和maxBytes至少有一个大于0");
+        }
+        this.name = name;
+        this.maxSessions = maxSessions > 0 ? maxSessions : Integer.MAX_VALUE;
+        this.maxBytes = maxBytes > 0 ? maxBytes : Long.MAX_VALUE;
+        int expected = maxSessions > 0 ? maxSessions : 10000;
+        if (TINY_LFU.equals(name)) {
+            //窗口占容量的1%
+            this.maxWindowSessions = Math.max(1, expected / 100);
+            this.sketch = new FrequencySketch(expected);
+        } else {
+            this.maxWindowSessions = 0;
+            this.sketch = null;
+        }
+    }
+
+    /**
+     * 记录一次保存
+     *
+     * @return 需要淘汰的sessionId，可能包含刚保存的session本身
+     */
+    public synchronized List<String> onWrite(String sid, long weight) {
+        increment(sid);
+        Long previous = this.main.containsKey(sid) ? this.main.put(sid, weight) : this.window.put(sid, weight);
+        this.bytes += weight - (previous != null ? previous : 0);
+        List<String> victims = new ArrayList<>();
+        while (this.window.size() > this.maxWindowSessions) {
+            Map.Entry<String, Long> eldest = this.window.entrySet().iterator().next();
+            this.window.remove(eldest.getKey());
+            admit(eldest.getKey(), eldest.getValue(), victims);
+        }
+        //单个session变大时可能仍然超出字节数的限制
+        evict(this.main, victims);
+        evict(this.window, victims);
+        return victims;
+    }
+
+    /**
+     * 记录一次命中
+     */
+    public synchronized void onHit(String sid) {
+        this.hitCount.incrementAndGet();
+        increment(sid);
+        if (this.main.get(sid) == null) {
+            this.window.get(sid);
+        }
+    }
+
+    public synchronized void onMiss(String sid) {
+        this.missCount.incrementAndGet();
+        increment(sid);
+    }
+
+    /**
+     * session被删除或过期时移除记录
+     */
+    public synchronized void remove(String sid) {
+        Long weight = this.main.remove(sid);
+        if (weight == null) {
+            weight = this.window.remove(sid);
+        }
+        if (weight != null) {
+            this.bytes -= weight;
+        }
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    public long getHitCount() {
+        return this.hitCount.get();
+    }
+
+    public long getMissCount() {
+        return this.missCount.get();
+    }
+
+    /**
+     * 查找session时命中的比例，没有查找过时为0
+     */
+    public double getHitRatio() {
+        long hit = this.hitCount.get();
+        long total = hit + this.missCount.get();
+        return total == 0 ? 0 : (double) hit / total;
+    }
+
+    /**
+     * 为了腾出空间被淘汰的已有session数
+     */
+    public long getEvictionCount() {
+        return this.evictionCount.get();
+    }
+
+    /**
+     * 因为访问频率太低没能进入仓库的新session数
+     */
+    public long getRejectionCount() {
+        return this.rejectionCount.get();
+    }
+
+    public synchronized int getSize() {
+        return this.window.size() + this.main.size();
+    }
+
+    public synchronized long getBytes() {
+        return this.bytes;
+    }
+
+    /**
+     * 把被挤出窗口的session放入主区域，超出容量时和主区域中最久未访问的session比较访问频率
+     */
+    private void admit(String candidate, long weight, List<String> victims) {
+        Iterator<Map.Entry<String, Long>> it = this.main.entrySet().iterator();
+        //候选者已经移出窗口，但还计算在容量之内
+        while (isOverflow(1) && it.hasNext()) {
+            Map.Entry<String, Long> victim = it.next();
+            if (this.sketch != null && this.sketch.frequency(candidate) <= this.sketch.frequency(victim.getKey())) {
+                this.bytes -= weight;
+                this.rejectionCount.incrementAndGet();
+                victims.add(candidate);
+                return;
+            }
+            it.remove();
+            this.bytes -= victim.getValue();
+            this.evictionCount.incrementAndGet();
+            victims.add(victim.getKey());
+        }
+        this.main.put(candidate, weight);
+    }
+
+    private void evict(LinkedHashMap<String, Long> region, List<String> victims) {
+        Iterator<Map.Entry<String, Long>> it = region.entrySet().iterator();
+        while (isOverflow(0) && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            it.remove();
+            this.bytes -= eldest.getValue();
+            this.evictionCount.incrementAndGet();
+            victims.add(eldest.getKey());
+        }
+    }
+
+    private boolean isOverflow(int pending) {
+        return (long) this.window.size() + this.main.size() + pending > this.maxSessions || this.bytes > this.maxBytes;
+    }
+
+    private void increment(String sid) {
+        if (this.sketch != null) {
+            this.sketch.increment(sid);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SessionEvictionPolicy{" +
+                "name='" + name + '\'' +
+                ", hitRatio=" + getHitRatio() +
+                ", evictionCount=" + evictionCount +
+                ", rejectionCount=" + rejectionCount +
+                '}';
+    }
+
+    /**
+     * 近似的访问频率统计，每个sessionId对应4个计数器，取最小值作为频率。
+     * 计数器最大为15，记录次数达到容量的10倍时全部减半，使过去的访问逐渐失去影响
+     */
+    private static final class FrequencySketch {
+        private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+        private final byte[] counters;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        private FrequencySketch(int capacity) {
+            int size = Integer.highestOneBit(Math.max(16, Math.min(capacity, 1 << 24)) * 4 - 1) << 1;
+            this.counters = new byte[size];
+            this.mask = size - 1;
+            this.sampleSize = 10 * Math.max(capacity, 16);
+        }
+
+        private void increment(String sid) {
+            int hash = spread(sid.hashCode());
+            boolean added = false;
+            for (int seed : SEEDS) {
+                int i = index(hash, seed);
+                if (this.counters[i] < 15) {
+                    this.counters[i]++;
+                    added = true;
+                }
+            }
+            if (added && ++this.additions >= this.sampleSize) {
+                for (int i = 0; i < this.counters.length; i++) {
+                    this.counters[i] >>>= 1;
+                }
+                this.additions >>>= 1;
+            }
+        }
+
+        private int frequency(String sid) {
+            int hash = spread(sid.hashCode());
+            int frequency = 15;
+            for (int seed : SEEDS) {
+                frequency = Math.min(frequency, this.counters[index(hash, seed)]);
+            }
+            return frequency;
+        }
+
+        private int index(int hash, int seed) {
+            int h = (hash ^ seed) * seed;
+            return (h ^ (h >>> 16)) & this.mask;
+        }
+
+        private static int spread(int h) {
+            h ^= h >>> 16;
+            h *= 0x45D9F3B;
+            return h ^ (h >>> 16);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package net.gvsun.session.repository;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 本地仓库共用的过期索引
+ * <p>
+ * 按过期时间（精确到秒）把sessionId登记到桶中，清理时只取出已经到期的桶，不需要扫描所有session
+ *
+ * @author 陈敬
+ * @since 1.1.4-SNAPSHOT
+ */
+final class SessionExpiryIndex {
+    private static final Logger logger = LoggerFactory.getLogger(SessionExpiryIndex.class);
+    //每个桶的时间跨度
+    private static final long BUCKET = 1000; //ms
+    //过期时间所在的桶到sessionId的索引
+    private final ConcurrentSkipListMap<Long, Set<String>> expirations = new ConcurrentSkipListMap<>();
+    //sessionId到其所在的桶
+    private final ConcurrentHashMap<String, Long> buckets = new ConcurrentHashMap<>();
+
+    /**
+     * 按session的过期时间登记，永不过期的session不登记
+     */
+    void add(String sid, long lastAccessedTime, int maxInactiveInterval) {
+        Long bucket = null;
+        if (maxInactiveInterval > 0) {
+            //和Session.isExpired保持一致，超过maxInactiveInterval的下一秒才算过期
+            long expireAt = lastAccessedTime + (maxInactiveInterval + 1) * 1000L;
+            bucket = (expireAt + BUCKET - 1) / BUCKET * BUCKET;
+        }
+        Long previous = bucket != null ? this.buckets.put(sid, bucket) : this.buckets.remove(sid);
+        if (previous != null && !previous.equals(bucket)) {
+            removeFromBucket(previous, sid);
+        }
+        if (bucket != null) {
+            this.expirations.compute(bucket, (k, ids) -> {
+                if (ids == null) {
+                    ids = ConcurrentHashMap.newKeySet();
+                }
+                ids.add(sid);
+                return ids;
+            });
+        }
+    }
+
+    void remove(String sid) {
+        Long bucket = this.buckets.remove(sid);
+        if (bucket != null) {
+            removeFromBucket(bucket, sid);
+        }
+    }
+
+    /**
+     * 取出所有已经到期的sessionId，调用者还需要确认session确实已经过期
+     */
+    List<String> pollExpired(long now) {
+        List<String> result = new ArrayList<>();
+        Map.Entry<Long, Set<String>> first;
+        while ((first = this.expirations.firstEntry()) != null && first.getKey() <= now) {
+            if (this.expirations.remove(first.getKey()) == null) {
+                continue;
+            }
+            for (String sid : first.getValue()) {
+                if (this.buckets.remove(sid, first.getKey())) {
+                    result.add(sid);
+                }
+            }
+        }
+        return result;
+    }
+
+    private void removeFromBucket(Long bucket, String sid) {
+        this.expirations.computeIfPresent(bucket, (k, ids) -> {
+            ids.remove(sid);
+            return ids.isEmpty() ? null : ids;
+        });
+    }
+
+    /**
+     * 启动定期执行清理的后台线程
+     */
+    static ScheduledExecutorService startSweeper(long interval, Runnable cleanup) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("interval必须大于0");
+        }
+        ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "usession-expiry-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(() -> {
+            try {
+                cleanup.run();
+            } catch (RuntimeException e) {
+                logger.error("清理过期session失败", e);
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+        return sweeper;
+    }
+}
@@ -0,0 +1,217 @@
+package net.gvsun.session.repository;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+
+/**
+ * 位于Redis之前的本地session缓存，以sessionId和项目名为key
+ * <p>
+ * 缓存按条目数和字节数限制容量，超出时淘汰最久未访问的条目，每个条目在ttl之后失效。
+ * 条目中保存的是属性序列化后的字节，每次命中都解码出新的属性对象，请求之间不会共享可变的属性。
+ * 其他节点保存或删除session时会在Redis频道上发布sessionId，收到后丢弃对应的条目
+ *
+ * @author 陈敬
+ * @since 1.1.4-SNAPSHOT
+ */
+public class SessionNearCache implements MessageListener {
+    private static final Logger logger = LoggerFactory.getLogger(SessionNearCache.class);
+    private final int maxEntries;
+    private final long maxBytes;
+    private final long ttl; //ms
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Set<String>> keysBySessionId = new HashMap<>();
+    private long bytes;
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+    private final AtomicLong invalidationCount = new AtomicLong();
+
+    public SessionNearCache(int maxEntries, long maxBytes, long ttl) {
+        if (maxEntries <= 0 || maxBytes <= 0 || ttl <= 0) {
+            throw new IllegalArgumentException("maxEntries、maxBytes和ttl必须大于0");
+        }
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.ttl = ttl;
+    }
+
+    /**
+     * 用缓存的数据创建新的session，未命中或已过期时返回null
+     *
+     * @param decoder 根据属性名把缓存的字节解码为属性
+     */
+    public RedisSession get(String sid, String projectName, BiFunction<String, byte[], Object> decoder) {
+        String key = key(sid, projectName);
+        Entry entry;
+        long lastAccessedTime = 0;
+        synchronized (this) {
+            entry = this.entries.get(key);
+            if (entry != null) {
+                if (entry.expireAt > System.currentTimeMillis()) {
+                    lastAccessedTime = entry.lastAccessedTime;
+                } else {
+                    remove(key);
+                    entry = null;
+                }
+            }
+        }
+        if (entry == null) {
+            this.missCount.incrementAndGet();
+            return null;
+        }
+        this.hitCount.incrementAndGet();
+        //条目中除了最后访问时间都不会再修改，可以在锁外解码
+        RedisSession session = new RedisSession(sid);
+        session.setMaxInactiveInterval(entry.maxInactiveInterval);
+        for (Map.Entry<String, byte[]> e : entry.attributes.entrySet()) {
+            session.putLoadedAttribute(e.getKey(), decoder.apply(e.getKey(), e.getValue()));
+        }
+        session.setPrefetchedShareAttributes(entry.prefetchedShareAttributes);
+        session.setCreationTime(entry.creationTime);
+        session.markLoaded(lastAccessedTime);
+        return session;
+    }
+
+    /**
+     * 缓存session的元数据和属性序列化后的字节
+     *
+     * @param attributes 属性名到序列化后的字节，放入缓存之后不能再修改
+     * @param weight     session序列化后的字节数
+     */
+    public void put(String sid, String projectName, RedisSession session, Map<String, byte[]> attributes, long weight) {
+        if (weight > this.maxBytes) {
+            return;
+        }
+        String key = key(sid, projectName);
+        Entry entry = new Entry(sid, session, attributes, weight, System.currentTimeMillis() + this.ttl);
+        synchronized (this) {
+            remove(key);
+            this.entries.put(key, entry);
+            this.keysBySessionId.computeIfAbsent(sid, k -> new HashSet<>()).add(key);
+            this.bytes += weight;
+            evict();
+        }
+    }
+
+    /**
+     * 更新缓存中session的最后访问时间，只有元数据被写入时使用，不需要通知其他节点
+     */
+    public synchronized void touch(String sid, long lastAccessedTime) {
+        Set<String> keys = this.keysBySessionId.get(sid);
+        if (keys != null) {
+            for (String key : keys) {
+                this.entries.get(key).lastAccessedTime = lastAccessedTime;
+            }
+        }
+    }
+
+    /**
+     * 丢弃session在所有项目下的缓存条目
+     */
+    public void invalidate(String sid) {
+        synchronized (this) {
+            Set<String> keys = this.keysBySessionId.get(sid);
+            if (keys == null) {
+                return;
+            }
+            for (String key : new ArrayList<>(keys)) {
+                remove(key);
+            }
+        }
+        this.invalidationCount.incrementAndGet();
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String sid = new String(message.getBody(), StandardCharsets.UTF_8);
+        logger.debug("收到session:{}的失效通知", sid);
+        invalidate(sid);
+    }
+
+    public long getHitCount() {
+        return this.hitCount.get();
+    }
+
+    public long getMissCount() {
+        return this.missCount.get();
+    }
+
+    public long getEvictionCount() {
+        return this.evictionCount.get();
+    }
+
+    public long getInvalidationCount() {
+        return this.invalidationCount.get();
+    }
+
+    public synchronized int getSize() {
+        return this.entries.size();
+    }
+
+    public synchronized long getBytes() {
+        return this.bytes;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> it = this.entries.entrySet().iterator();
+        while ((this.entries.size() > this.maxEntries || this.bytes > this.maxBytes) && it.hasNext()) {
+            Map.Entry<String, Entry> eldest = it.next();
+            it.remove();
+            unlink(eldest.getKey(), eldest.getValue());
+            this.evictionCount.incrementAndGet();
+        }
+    }
+
+    private void remove(String key) {
+        Entry entry = this.entries.remove(key);
+        if (entry != null) {
+            unlink(key, entry);
+        }
+    }
+
+    private void unlink(String key, Entry entry) {
+        this.bytes -= entry.weight;
+        Set<String> keys = this.keysBySessionId.get(entry.sid);
+        if (keys != null) {
+            keys.remove(key);
+            if (keys.isEmpty()) {
+                this.keysBySessionId.remove(entry.sid);
+            }
+        }
+    }
+
+    private static String key(String sid, String projectName) {
+        return sid + ":" + projectName;
+    }
+
+    private static final class Entry {
+        private final String sid;
+        private final Map<String, byte[]> attributes;
+        private final Map<String, Map<String, String>> prefetchedShareAttributes;
+        private final long creationTime;
+        private final int maxInactiveInterval;
+        private final long weight;
+        private final long expireAt;
+        //由缓存的锁保护
+        private long lastAccessedTime;
+
+        private Entry(String sid, RedisSession session, Map<String, byte[]> attributes, long weight, long expireAt) {
+            this.sid = sid;
+            this.attributes = attributes;
+            //加载时已经是只读的
+            this.prefetchedShareAttributes = session.getPrefetchedShareAttributes();
+            this.creationTime = session.getCreationTime();
+            this.maxInactiveInterval = session.getMaxInactiveInterval();
+            this.lastAccessedTime = session.getLastAccessedTime();
+            this.weight = weight;
+            this.expireAt = expireAt;
+        }
+    }
+}
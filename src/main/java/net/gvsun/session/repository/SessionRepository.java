@@ -1,5 +1,9 @@
 package net.gvsun.session.repository;
 
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * 存储session的仓库
  *
@@ -16,4 +20,28 @@ public interface SessionRepository<S extends Session> {
     S findById(String sid, String projectName);
 
     void deleteById(String sid);
+
+    /**
+     * 批量读取多个项目的共享属性
+     *
+     * @param attributeNames 项目名到属性名的映射，属性名不含共享前缀
+     * @return 项目名到属性名和JSON的映射，不存在的属性不包含在结果中
+     */
+    default Map<String, Map<String, String>> findShareAttributes(String sid, Map<String, ? extends Collection<String>> attributeNames) {
+        Map<String, Map<String, String>> result = new HashMap<>();
+        for (Map.Entry<String, ? extends Collection<String>> e : attributeNames.entrySet()) {
+            Map<String, String> values = new HashMap<>();
+            S session = findById(sid, e.getKey());
+            if (session != null) {
+                for (String name : e.getValue()) {
+                    Object val = session.getAttribute(RedisSessionRepository.PUBLIC + name);
+                    if (val instanceof String) {
+                        values.put(name, (String) val);
+                    }
+                }
+            }
+            result.put(e.getKey(), values);
+        }
+        return result;
+    }
 }
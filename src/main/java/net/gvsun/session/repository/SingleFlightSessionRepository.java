@@ -0,0 +1,173 @@
+package net.gvsun.session.repository;
+
+import org.springframework.beans.factory.DisposableBean;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * 合并并发查找的session仓库，同一个sessionId同时只有一个请求访问被包装的仓库
+ * <p>
+ * 页面加载时浏览器会带着同一个sessionId同时发出大量请求，第一个请求负责查找，
+ * 查找期间到达的请求等待它的结果，每个请求得到一份独立的副本。没有其他请求等待时不复制。
+ * 保存或删除session之后到达的请求不会再使用之前发起的查找
+ *
+ * @author 陈敬
+ * @since 1.1.4-SNAPSHOT
+ */
+public class SingleFlightSessionRepository<S extends Session> implements SessionRepository<S>, DisposableBean {
+    private final SessionRepository<S> delegate;
+    //复制session，副本之间不能共享可变状态
+    private final Function<S, S> copier;
+    private final ConcurrentHashMap<String, Flight> flights = new ConcurrentHashMap<>();
+    private final AtomicLong loadCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    public SingleFlightSessionRepository(SessionRepository<S> delegate, Function<S, S> copier) {
+        if (delegate == null) {
+            throw new IllegalArgumentException("delegate不能为null");
+        }
+        if (copier == null) {
+            throw new IllegalArgumentException("copier不能为null");
+        }
+        this.delegate = delegate;
+        this.copier = copier;
+    }
+
+    @Override
+    public S createSession() {
+        return delegate.createSession();
+    }
+
+    @Override
+    public void save(S session) {
+        delegate.save(session);
+        close(session.getId());
+    }
+
+    @Override
+    public S findById(String sid) {
+        while (true) {
+            Flight created = new Flight();
+            Flight flight = this.flights.putIfAbsent(sid, created);
+            if (flight == null) {
+                return load(sid, created);
+            }
+            if (flight.join()) {
+                this.coalescedCount.incrementAndGet();
+                S session = flight.get();
+                return session != null ? copier.apply(session) : null;
+            }
+            //查找已经结束，重新发起
+            this.flights.remove(sid, flight);
+        }
+    }
+
+    @Override
+    public S findById(String sid, String projectName) {
+        return delegate.findById(sid, projectName);
+    }
+
+    @Override
+    public void deleteById(String sid) {
+        delegate.deleteById(sid);
+        close(sid);
+    }
+
+    @Override
+    public Map<String, Map<String, String>> findShareAttributes(String sid, Map<String, ? extends Collection<String>> attributeNames) {
+        return delegate.findShareAttributes(sid, attributeNames);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if (delegate instanceof DisposableBean) {
+            ((DisposableBean) delegate).destroy();
+        }
+    }
+
+    /**
+     * 访问被包装的仓库的次数
+     */
+    public long getLoadCount() {
+        return this.loadCount.get();
+    }
+
+    /**
+     * 使用了其他请求的查找结果的次数
+     */
+    public long getCoalescedCount() {
+        return this.coalescedCount.get();
+    }
+
+    private S load(String sid, Flight flight) {
+        S session;
+        try {
+            this.loadCount.incrementAndGet();
+            session = delegate.findById(sid);
+            flight.result.complete(session);
+        } catch (RuntimeException e) {
+            flight.result.completeExceptionally(e);
+            throw e;
+        } finally {
+            this.flights.remove(sid, flight);
+        }
+        //其他请求会复制查找结果，自己也要使用副本，避免修改和复制同时进行
+        return flight.close() && session != null ? copier.apply(session) : session;
+    }
+
+    private void close(String sid) {
+        Flight flight = this.flights.remove(sid);
+        if (flight != null) {
+            flight.close();
+        }
+    }
+
+    /**
+     * 一次正在进行的查找
+     */
+    private final class Flight {
+        private final CompletableFuture<S> result = new CompletableFuture<>();
+        private boolean closed;
+        private int waiters;
+
+        /**
+         * 加入查找
+         *
+         * @return 查找已经结束时返回false
+         */
+        private synchronized boolean join() {
+            if (this.closed) {
+                return false;
+            }
+            this.waiters++;
+            return true;
+        }
+
+        /**
+         * 不再接受新的请求加入
+         *
+         * @return 是否有其他请求在等待结果
+         */
+        private synchronized boolean close() {
+            this.closed = true;
+            return this.waiters > 0;
+        }
+
+        private S get() {
+            try {
+                return this.result.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package net.gvsun.session.repository;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 在堆外的直接内存块（slab）中分配定长的存储块，非线程安全，由调用者加锁
+ * <p>
+ * 存储块按大小分级，相邻级别相差约1.25倍。释放的存储块放回所属级别的空闲列表，之后分配同一级别时优先复用。
+ * 存储块的地址是一个long：高24位是slab序号，中间8位是级别，低32位是slab内的偏移
+ *
+ * @author 陈敬
+ * @since 1.1.4-SNAPSHOT
+ */
+final class SlabAllocator {
+    private static final int MIN_BLOCK = 64;
+    private static final double GROWTH_FACTOR = 1.25;
+    private final int slabSize;
+    private final int maxSlabs;
+    private final int[] blockSizes;
+    private final LongStack[] freeLists;
+    private final List<ByteBuffer> slabs = new ArrayList<>();
+    //当前slab中还未分配过的位置
+    private int position;
+    private long usedBytes;
+
+    SlabAllocator(int slabSize, long maxBytes) {
+        if (slabSize < MIN_BLOCK) {
+            throw new IllegalArgumentException("slabSize不能小于" + MIN_BLOCK);
+        }
+        if (maxBytes < slabSize) {
+            throw new IllegalArgumentException("maxBytes不能小于slabSize");
+        }
+        this.slabSize = slabSize;
+        this.maxSlabs = (int) Math.min(maxBytes / slabSize, 1 << 23);
+        List<Integer> sizes = new ArrayList<>();
+        for (long size = MIN_BLOCK; size < slabSize && sizes.size() < 255; size = (long) (size * GROWTH_FACTOR + 7) & ~7L) {
+            sizes.add((int) size);
+        }
+        sizes.add(slabSize);
+        this.blockSizes = new int[sizes.size()];
+        this.freeLists = new LongStack[sizes.size()];
+        for (int i = 0; i < this.blockSizes.length; i++) {
+            this.blockSizes[i] = sizes.get(i);
+            this.freeLists[i] = new LongStack();
+        }
+        this.position = slabSize;
+    }
+
+    /**
+     * 分配一个能容纳length字节的存储块
+     *
+     * @return 存储块的地址，堆外内存已经用完时返回-1
+     */
+    long allocate(int length) {
+        if (length > this.slabSize) {
+            throw new IllegalArgumentException("数据长度" + length + "超过了slabSize=" + this.slabSize);
+        }
+        int level = level(length);
+        long address;
+        if (!this.freeLists[level].isEmpty()) {
+            address = this.freeLists[level].pop();
+        } else {
+            int size = this.blockSizes[level];
+            if (this.position + size > this.slabSize) {
+                if (this.slabs.size() >= this.maxSlabs) {
+                    return -1;
+                }
+                this.slabs.add(ByteBuffer.allocateDirect(this.slabSize));
+                this.position = 0;
+            }
+            address = ((long) (this.slabs.size() - 1) << 40) | ((long) level << 32) | this.position;
+            this.position += size;
+        }
+        this.usedBytes += this.blockSizes[level];
+        return address;
+    }
+
+    void free(long address) {
+        int level = level(address);
+        this.usedBytes -= this.blockSizes[level];
+        this.freeLists[level].push(address);
+    }
+
+    /**
+     * 存储块的容量
+     */
+    int capacity(long address) {
+        return this.blockSizes[level(address)];
+    }
+
+    void write(long address, int offset, byte[] data) {
+        ByteBuffer slab = slab(address);
+        slab.position(offset(address) + offset);
+        slab.put(data);
+    }
+
+    void read(long address, int offset, byte[] dest) {
+        ByteBuffer slab = slab(address);
+        slab.position(offset(address) + offset);
+        slab.get(dest);
+    }
+
+    int getInt(long address, int offset) {
+        return slab(address).getInt(offset(address) + offset);
+    }
+
+    long getLong(long address, int offset) {
+        return slab(address).getLong(offset(address) + offset);
+    }
+
+    void putInt(long address, int offset, int value) {
+        slab(address).putInt(offset(address) + offset, value);
+    }
+
+    void putLong(long address, int offset, long value) {
+        slab(address).putLong(offset(address) + offset, value);
+    }
+
+    /**
+     * 已经申请的堆外内存字节数
+     */
+    long getReservedBytes() {
+        return (long) this.slabs.size() * this.slabSize;
+    }
+
+    /**
+     * 已经分配出去的存储块的总字节数
+     */
+    long getUsedBytes() {
+        return this.usedBytes;
+    }
+
+    void clear() {
+        this.slabs.clear();
+        for (LongStack freeList : this.freeLists) {
+            freeList.clear();
+        }
+        this.position = this.slabSize;
+        this.usedBytes = 0;
+    }
+
+    private int level(int length) {
+        int i = Arrays.binarySearch(this.blockSizes, Math.max(length, MIN_BLOCK));
+        return i >= 0 ? i : -i - 1;
+    }
+
+    private static int level(long address) {
+        return (int) (address >>> 32) & 0xFF;
+    }
+
+    private ByteBuffer slab(long address) {
+        return this.slabs.get((int) (address >>> 40));
+    }
+
+    private static int offset(long address) {
+        return (int) address;
+    }
+
+    /**
+     * 存放long的栈，避免装箱
+     */
+    private static final class LongStack {
+        private long[] values = new long[16];
+        private int size;
+
+        private void push(long value) {
+            if (this.size == this.values.length) {
+                this.values = Arrays.copyOf(this.values, this.size * 2);
+            }
+            this.values[this.size++] = value;
+        }
+
+        private long pop() {
+            return this.values[--this.size];
+        }
+
+        private boolean isEmpty() {
+            return this.size == 0;
+        }
+
+        private void clear() {
+            this.values = new long[16];
+            this.size = 0;
+        }
+    }
+}
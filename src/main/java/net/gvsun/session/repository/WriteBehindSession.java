@@ -0,0 +1,25 @@
+package net.gvsun.session.repository;
+
+/**
+ * 支持异步保存的session，由{@link WriteBehindSessionRepository}在原session和它的快照之间转移变更
+ *
+ * @author 陈敬
+ * @since 1.1.4-SNAPSHOT
+ */
+interface WriteBehindSession<S extends Session> {
+    /**
+     * 快照已经交给后台线程写入，清空原session中已经进入快照的变更并标记为已保存，
+     * 之后的保存只包含新的变更
+     */
+    void handOff(S snapshot);
+
+    /**
+     * 当前快照替换同一个session更早的、还没有写入的快照时，合并更早的快照中的变更、原来的id和保存状态
+     */
+    void mergeEarlier(S earlier);
+
+    /**
+     * 快照最终写入失败时把它的变更和保存状态放回原session，留给下一次保存
+     */
+    void restore(S failed);
+}
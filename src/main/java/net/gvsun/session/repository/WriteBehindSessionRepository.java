@@ -0,0 +1,426 @@
+package net.gvsun.session.repository;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * 异步写入的session存储仓库，把保存操作交给后台线程执行，不阻塞请求线程
+ * <p>
+ * 保存时先复制出session的快照，后台线程写入的是快照，之后对session的修改不会影响这次保存。
+ * session实现了{@link WriteBehindSession}时，快照入队后原session即标记为已保存，之后的保存只包含新的变更。
+ * 同一个session对象在写入之前的多次保存会合并为一次，同一个sessionId的写入按保存的顺序执行，
+ * 队列满时退化为同步保存。写入失败时重新排队，最多尝试{@link #MAX_ATTEMPTS}次，仍然失败时把变更放回原session。
+ * 查找或删除一个还未写入的session时会先同步写入，保证本节点总能读到最新的状态
+ *
+ * @author 陈敬
+ * @since 1.1.4-SNAPSHOT
+ */
+public class WriteBehindSessionRepository<S extends Session> implements SessionRepository<S>, DisposableBean {
+    private static final Logger logger = LoggerFactory.getLogger(WriteBehindSessionRepository.class);
+    public static final int MAX_ATTEMPTS = 3;
+    private final SessionRepository<S> delegate;
+    //复制保存时需要的全部状态，快照和原session不能共享可变状态
+    private final Function<S, S> snapshot;
+    private final BlockingQueue<Pending> queue;
+    private final ConcurrentHashMap<String, Pending> pending = new ConcurrentHashMap<>();
+    private final List<Thread> workers = new ArrayList<>();
+    private volatile boolean closed;
+    private final AtomicLong submittedCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+    private final AtomicLong writtenCount = new AtomicLong();
+    private final AtomicLong syncFallbackCount = new AtomicLong();
+    private final AtomicLong failureCount = new AtomicLong();
+    private final AtomicLong retryCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private volatile long lastLag; //ms
+    private volatile long maxLag; //ms
+
+    public WriteBehindSessionRepository(SessionRepository<S> delegate, Function<S, S> snapshot,
+                                        int queueCapacity, int threads) {
+        if (delegate == null) {
+            throw new IllegalArgumentException("delegate不能为null");
+        }
+        if (snapshot == null) {
+            throw new IllegalArgumentException("snapshot不能为null");
+        }
+        if (queueCapacity <= 0 || threads <= 0) {
+            throw new IllegalArgumentException("queueCapacity和threads必须大于0");
+        }
+        this.delegate = delegate;
+        this.snapshot = snapshot;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(this::work, "usession-write-behind-" + i);
+            worker.setDaemon(true);
+            worker.start();
+            this.workers.add(worker);
+        }
+    }
+
+    @Override
+    public S createSession() {
+        return delegate.createSession();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void save(S session) {
+        this.submittedCount.incrementAndGet();
+        if (this.closed) {
+            delegate.save(session);
+            return;
+        }
+        S copy = snapshot.apply(session);
+        if (session instanceof WriteBehindSession) {
+            ((WriteBehindSession<S>) session).handOff(copy);
+        }
+        enqueue(session.getId(), new Write(session, copy, 0));
+    }
+
+    @Override
+    public S findById(String sid) {
+        flush(sid);
+        return delegate.findById(sid);
+    }
+
+    @Override
+    public S findById(String sid, String projectName) {
+        flush(sid);
+        return delegate.findById(sid, projectName);
+    }
+
+    @Override
+    public void deleteById(String sid) {
+        flush(sid);
+        delegate.deleteById(sid);
+    }
+
+    @Override
+    public Map<String, Map<String, String>> findShareAttributes(String sid, Map<String, ? extends Collection<String>> attributeNames) {
+        flush(sid);
+        return delegate.findShareAttributes(sid, attributeNames);
+    }
+
+    /**
+     * 停止后台线程，写入所有还未写入的session，然后关闭被包装的仓库
+     */
+    @Override
+    public void destroy() throws Exception {
+        this.closed = true;
+        for (Thread worker : this.workers) {
+            worker.join(TimeUnit.SECONDS.toMillis(10));
+        }
+        for (Pending p : new ArrayList<>(this.pending.values())) {
+            p.flush();
+        }
+        logger.info("异步写入已停止，共写入{}次", this.writtenCount.get());
+        if (delegate instanceof DisposableBean) {
+            ((DisposableBean) delegate).destroy();
+        }
+    }
+
+    /**
+     * 队列中等待写入的session数
+     */
+    public int getQueueDepth() {
+        return this.queue.size();
+    }
+
+    public long getSubmittedCount() {
+        return this.submittedCount.get();
+    }
+
+    public long getCoalescedCount() {
+        return this.coalescedCount.get();
+    }
+
+    public long getWrittenCount() {
+        return this.writtenCount.get();
+    }
+
+    public long getSyncFallbackCount() {
+        return this.syncFallbackCount.get();
+    }
+
+    public long getFailureCount() {
+        return this.failureCount.get();
+    }
+
+    /**
+     * 写入失败后重新排队的次数
+     */
+    public long getRetryCount() {
+        return this.retryCount.get();
+    }
+
+    /**
+     * 尝试{@link #MAX_ATTEMPTS}次仍然失败而放弃的写入数
+     */
+    public long getDroppedCount() {
+        return this.droppedCount.get();
+    }
+
+    /**
+     * 最近一次写入距离入队的时间，以毫秒为单位
+     */
+    public long getLastLag() {
+        return this.lastLag;
+    }
+
+    /**
+     * 写入距离入队的最长时间，以毫秒为单位
+     */
+    public long getMaxLag() {
+        return this.maxLag;
+    }
+
+    private void flush(String sid) {
+        Pending p = this.pending.get(sid);
+        if (p != null) {
+            p.flush();
+        }
+    }
+
+    private void enqueue(String sid, Write write) {
+        Pending created = new Pending(sid);
+        created.writes.add(write);
+        while (true) {
+            Pending p = this.pending.putIfAbsent(sid, created);
+            if (p == null) {
+                offer(created);
+                return;
+            }
+            if (p.add(write)) {
+                this.coalescedCount.incrementAndGet();
+                return;
+            }
+            //已经在写入，排在它之后
+            created.previous = p;
+            if (this.pending.replace(sid, p, created)) {
+                offer(created);
+                return;
+            }
+        }
+    }
+
+    /**
+     * 把写入失败的快照放回等待写入的队列，排在同一个sessionId之后的保存之前
+     */
+    private void requeue(String sid, List<Write> failed) {
+        this.retryCount.addAndGet(failed.size());
+        while (true) {
+            Pending p = this.pending.get(sid);
+            if (p != null && p.addFirst(failed)) {
+                return;
+            }
+            Pending created = new Pending(sid);
+            created.writes.addAll(failed);
+            created.previous = p;
+            if (p == null ? this.pending.putIfAbsent(sid, created) == null : this.pending.replace(sid, p, created)) {
+                offer(created);
+                return;
+            }
+        }
+    }
+
+    /**
+     * 新的快照替换同一个session对象更早的快照时，合并更早的快照中还没有写入的变更
+     */
+    @SuppressWarnings("unchecked")
+    private Write merge(Write later, Write earlier) {
+        if (later.snapshot instanceof WriteBehindSession) {
+            ((WriteBehindSession<S>) later.snapshot).mergeEarlier(earlier.snapshot);
+        }
+        return later;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void restore(Write failed) {
+        if (failed.source instanceof WriteBehindSession) {
+            ((WriteBehindSession<S>) failed.source).restore(failed.snapshot);
+        }
+    }
+
+    private void offer(Pending p) {
+        if (this.closed) {
+            p.flush();
+        } else if (!this.queue.offer(p)) {
+            this.syncFallbackCount.incrementAndGet();
+            p.flush();
+        }
+    }
+
+    private void work() {
+        while (!this.closed || !this.queue.isEmpty()) {
+            try {
+                Pending p = this.queue.poll(100, TimeUnit.MILLISECONDS);
+                if (p != null) {
+                    p.flush();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * 一次保存：保存的session对象和它的快照
+     */
+    private final class Write {
+        private final S source;
+        private final S snapshot;
+        private final int attempts;
+
+        private Write(S source, S snapshot, int attempts) {
+            this.source = source;
+            this.snapshot = snapshot;
+            this.attempts = attempts;
+        }
+    }
+
+    /**
+     * 一个sessionId等待写入的保存操作，同一个session对象只保留最新的快照
+     */
+    private final class Pending {
+        private final String sid;
+        private final long enqueuedAt = System.currentTimeMillis();
+        private final List<Write> writes = new ArrayList<>(1);
+        //同一个sessionId之前的写入，需要等它完成之后再写入
+        private volatile Pending previous;
+        private boolean flushed;
+        private boolean written;
+
+        private Pending(String sid) {
+            this.sid = sid;
+        }
+
+        /**
+         * 加入一次保存，同一个对象的快照包含它之前的全部变更，替换掉之前的快照
+         *
+         * @return 已经在写入时返回false
+         */
+        private synchronized boolean add(Write write) {
+            if (this.flushed) {
+                return false;
+            }
+            for (int i = 0; i < this.writes.size(); i++) {
+                if (this.writes.get(i).source == write.source) {
+                    this.writes.set(i, merge(write, this.writes.get(i)));
+                    return true;
+                }
+            }
+            this.writes.add(write);
+            return true;
+        }
+
+        /**
+         * 把写入失败的快照排在前面，同一个对象已经有更新的快照时合并到更新的快照中
+         */
+        private synchronized boolean addFirst(List<Write> failed) {
+            if (this.flushed) {
+                return false;
+            }
+            List<Write> writes = new ArrayList<>(failed.size() + this.writes.size());
+            for (Write write : failed) {
+                boolean superseded = false;
+                for (Write w : this.writes) {
+                    if (w.source == write.source) {
+                        merge(w, write);
+                        superseded = true;
+                        break;
+                    }
+                }
+                if (!superseded) {
+                    writes.add(write);
+                }
+            }
+            writes.addAll(this.writes);
+            this.writes.clear();
+            this.writes.addAll(writes);
+            return true;
+        }
+
+        private void flush() {
+            //flush是同步的，之前的写入正在进行时会等待它完成
+            Pending before = this.previous;
+            if (before != null) {
+                before.flush();
+                this.previous = null;
+            }
+            List<Write> writes;
+            synchronized (this) {
+                if (this.flushed) {
+                    awaitWritten();
+                    return;
+                }
+                this.flushed = true;
+                writes = new ArrayList<>(this.writes);
+            }
+            long lag = System.currentTimeMillis() - this.enqueuedAt;
+            lastLag = lag;
+            if (lag > maxLag) {
+                maxLag = lag;
+            }
+            //写入时不持有锁，同一个sessionId新的保存不会被阻塞，而是排在这次写入之后
+            List<Write> failed = new ArrayList<>();
+            try {
+                for (Write write : writes) {
+                    try {
+                        delegate.save(write.snapshot);
+                        writtenCount.incrementAndGet();
+                    } catch (RuntimeException e) {
+                        failureCount.incrementAndGet();
+                        if (write.attempts + 1 < MAX_ATTEMPTS) {
+                            logger.warn("异步保存session:{}失败，重新排队", this.sid, e);
+                            failed.add(new Write(write.source, write.snapshot, write.attempts + 1));
+                        } else {
+                            droppedCount.incrementAndGet();
+                            restore(write);
+                            logger.error("异步保存session:{}失败{}次，放弃保存", this.sid, MAX_ATTEMPTS, e);
+                        }
+                    }
+                }
+            } finally {
+                //写入完成后才移除，写入期间的查找会等待写入完成
+                pending.remove(this.sid, this);
+                synchronized (this) {
+                    this.written = true;
+                    notifyAll();
+                }
+            }
+            if (!failed.isEmpty()) {
+                requeue(this.sid, failed);
+            }
+        }
+
+        /**
+         * 等待正在进行的写入完成
+         */
+        private synchronized void awaitWritten() {
+            boolean interrupted = false;
+            while (!this.written) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
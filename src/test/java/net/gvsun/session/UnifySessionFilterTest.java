@@ -0,0 +1,299 @@
+package net.gvsun.session;
+
+import net.gvsun.session.repository.AsyncSessionRepository;
+import net.gvsun.session.repository.MSession;
+import net.gvsun.session.repository.MSessionRepository;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.*;
+
+/**
+ * 一次请求中访问仓库的次数
+ */
+public class UnifySessionFilterTest {
+    private CountingRepository repository;
+    private UnifySessionProperties properties;
+    private UnifySessionFilter<MSession> filter;
+    private MSession saved;
+
+    @Before
+    public void setUp() {
+        repository = new CountingRepository();
+        properties = new UnifySessionProperties();
+        properties.setProjectName("test");
+        filter = new UnifySessionFilter<>(repository, properties);
+        saved = repository.createSession();
+        saved.setAttribute("name", "value");
+        repository.save(saved);
+        repository.reset();
+    }
+
+    @Test
+    public void loadsRequestedSessionOncePerRequest() throws Exception {
+        MockHttpServletResponse response = doFilter(saved.getId(), request -> {
+            assertEquals(saved.getId(), request.getRequestedSessionId());
+            assertTrue(request.isRequestedSessionIdValid());
+            HttpSession session = request.getSession(false);
+            assertNotNull(session);
+            assertSame(session, request.getSession(false));
+            assertSame(session, request.getSession());
+            assertEquals(saved.getId(), request.getRequestedSessionId());
+            assertTrue(request.isRequestedSessionIdValid());
+        });
+        assertEquals(1, repository.findCount);
+        assertEquals(1, repository.saveCount);
+        assertTrue(setCookies(response).isEmpty());
+    }
+
+    @Test
+    public void keepsRequestedSessionIdAfterChangeSessionId() throws Exception {
+        String[] changed = new String[1];
+        MockHttpServletResponse response = doFilter(saved.getId(), request -> {
+            request.getSession();
+            changed[0] = request.changeSessionId();
+            assertEquals(saved.getId(), request.getRequestedSessionId());
+        });
+        assertEquals(1, repository.findCount);
+        assertEquals(1, repository.saveCount);
+        assertNotEquals(saved.getId(), changed[0]);
+        assertNull(repository.findById(saved.getId()));
+        List<String> cookies = setCookies(response);
+        assertEquals(1, cookies.size());
+        assertTrue(cookies.get(0).startsWith("USESSIONID=" + changed[0]));
+    }
+
+    @Test
+    public void doesNotReloadInvalidatedSession() throws Exception {
+        MockHttpServletResponse response = doFilter(saved.getId(), request -> {
+            request.getSession().invalidate();
+            assertFalse(request.isRequestedSessionIdValid());
+            assertNull(request.getSession(false));
+            assertEquals(saved.getId(), request.getRequestedSessionId());
+        });
+        assertEquals(1, repository.findCount);
+        assertEquals(0, repository.saveCount);
+        assertEquals(1, repository.deleteCount);
+        List<String> cookies = setCookies(response);
+        assertEquals(1, cookies.size());
+        assertTrue(cookies.get(0).startsWith("USESSIONID=;"));
+    }
+
+    @Test
+    public void looksUpUnknownSessionIdOnce() throws Exception {
+        doFilter("unknown", request -> {
+            assertNull(request.getSession(false));
+            assertFalse(request.isRequestedSessionIdValid());
+            assertEquals("unknown", request.getRequestedSessionId());
+            assertNull(request.getSession(false));
+        });
+        assertEquals(1, repository.findCount);
+        assertEquals(0, repository.saveCount);
+    }
+
+    @Test
+    public void createsSessionWithoutRequestedId() throws Exception {
+        MockHttpServletResponse response = doFilter((String) null, request -> {
+            assertNull(request.getRequestedSessionId());
+            request.getSession().setAttribute("name", "value");
+            assertFalse(request.isRequestedSessionIdValid());
+        });
+        assertEquals(0, repository.findCount);
+        assertEquals(1, repository.saveCount);
+        assertEquals(1, setCookies(response).size());
+    }
+
+    @Test
+    public void lazyCreateSkipsEmptySession() throws Exception {
+        properties.setLazyCreate(true);
+        MockHttpServletResponse response = doFilter((String) null, request -> {
+            HttpSession session = request.getSession();
+            assertNotNull(session);
+            assertNull(session.getAttribute("name"));
+        });
+        assertEquals(0, repository.saveCount);
+        assertEquals(0, repository.deleteCount);
+        assertTrue(setCookies(response).isEmpty());
+    }
+
+    @Test
+    public void skipsFinalCommitWhenUnchangedSinceInclude() throws Exception {
+        doFilter(saved.getId(), request -> {
+            request.getSession().setAttribute("name", "included");
+            request.getRequestDispatcher("/include").include(request, new MockHttpServletResponse());
+        });
+        assertEquals(1, repository.saveCount);
+        assertEquals("included", repository.findById(saved.getId()).getAttribute("name"));
+    }
+
+    @Test
+    public void commitsAgainWhenChangedAfterInclude() throws Exception {
+        doFilter(saved.getId(), request -> {
+            request.getSession().setAttribute("name", "included");
+            request.getRequestDispatcher("/include").include(request, new MockHttpServletResponse());
+            request.getSession().setAttribute("name", "final");
+        });
+        assertEquals(2, repository.saveCount);
+        assertEquals("final", repository.findById(saved.getId()).getAttribute("name"));
+    }
+
+    @Test
+    public void cancelsUnusedAsyncLoad() throws Exception {
+        PendingAsyncRepository async = new PendingAsyncRepository();
+        filter.setAsyncSessionRepository(async);
+        doFilter(saved.getId(), request -> {
+        });
+        assertEquals(1, async.loads.size());
+        assertTrue(async.loads.get(0).isCancelled());
+
+        //使用了session时使用异步加载的结果，不取消
+        doFilter(saved.getId(), request -> {
+            async.loads.get(1).complete(repository.findById(saved.getId()));
+            assertEquals("value", request.getSession().getAttribute("name"));
+        });
+        assertFalse(async.loads.get(1).isCancelled());
+    }
+
+    @Test
+    public void sessionFreePathUsesTemporarySession() throws Exception {
+        properties.setSessionFreePaths(Collections.singletonList("/static/**"));
+        filter = new UnifySessionFilter<>(repository, properties);
+        MockHttpServletRequest request = request("/app", "/app/static/app.js", saved.getId());
+        MockHttpServletResponse response = doFilter(request, req -> {
+            assertNull(req.getSession(false));
+            HttpSession session = req.getSession();
+            assertNotNull(session);
+            assertSame(session, req.getSession(true));
+            assertSame(session, req.getSession(false));
+            session.setAttribute("name", "value");
+            assertEquals("value", session.getAttribute("name"));
+            String id = session.getId();
+            assertNotEquals(id, req.changeSessionId());
+            session.invalidate();
+            assertNull(req.getSession(false));
+        });
+        assertEquals(0, repository.findCount);
+        assertEquals(0, repository.saveCount);
+        assertEquals(0, repository.deleteCount);
+        assertTrue(setCookies(response).isEmpty());
+    }
+
+    @Test
+    public void matchesPathWithinApplication() throws Exception {
+        properties.setSessionFreePaths(Collections.singletonList("/static/**"));
+        filter = new UnifySessionFilter<>(repository, properties);
+        //URI中的编码和路径参数不影响匹配
+        for (String uri : new String[]{"/app/%73tatic/app.js", "/app/static;jsessionid=1/app.js"}) {
+            doFilter(request("/app", uri, saved.getId()), req -> assertNull(req.getSession(false)));
+        }
+        assertEquals(0, repository.findCount);
+        //其他路径照常使用session
+        doFilter(request("/app", "/app/index", saved.getId()), req -> assertNotNull(req.getSession(false)));
+        assertEquals(1, repository.findCount);
+    }
+
+    private static MockHttpServletRequest request(String contextPath, String uri, String sessionId) {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", uri);
+        request.setContextPath(contextPath);
+        if (sessionId != null) {
+            request.setCookies(new Cookie("USESSIONID", sessionId));
+        }
+        return request;
+    }
+
+    private MockHttpServletResponse doFilter(String sessionId, RequestHandler handler) throws Exception {
+        return doFilter(request("", "/", sessionId), handler);
+    }
+
+    private MockHttpServletResponse doFilter(MockHttpServletRequest request, RequestHandler handler) throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        FilterChain chain = (req, res) -> handler.handle((HttpServletRequest) req);
+        filter.doFilter(request, response, chain);
+        return response;
+    }
+
+    private static List<String> setCookies(MockHttpServletResponse response) {
+        return response.getHeaders("Set-Cookie");
+    }
+
+    private interface RequestHandler {
+        void handle(HttpServletRequest request) throws IOException, ServletException;
+    }
+
+    /**
+     * 加载结果由测试完成的异步仓库
+     */
+    private static final class PendingAsyncRepository implements AsyncSessionRepository<MSession> {
+        private final List<CompletableFuture<MSession>> loads = new ArrayList<>();
+
+        @Override
+        public MSession createSession() {
+            return new MSession();
+        }
+
+        @Override
+        public CompletableFuture<Void> save(MSession session) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletableFuture<MSession> findById(String sid) {
+            CompletableFuture<MSession> load = new CompletableFuture<>();
+            loads.add(load);
+            return load;
+        }
+
+        @Override
+        public CompletableFuture<MSession> findById(String sid, String projectName) {
+            return findById(sid);
+        }
+
+        @Override
+        public CompletableFuture<Void> deleteById(String sid) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static final class CountingRepository extends MSessionRepository {
+        private int findCount;
+        private int saveCount;
+        private int deleteCount;
+
+        @Override
+        public MSession findById(String sid) {
+            findCount++;
+            return super.findById(sid);
+        }
+
+        @Override
+        public void save(MSession session) {
+            saveCount++;
+            super.save(session);
+        }
+
+        @Override
+        public void deleteById(String sid) {
+            deleteCount++;
+            super.deleteById(sid);
+        }
+
+        private void reset() {
+            findCount = 0;
+            saveCount = 0;
+            deleteCount = 0;
+        }
+    }
+}
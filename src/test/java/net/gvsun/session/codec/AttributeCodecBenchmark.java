@@ -0,0 +1,99 @@
+package net.gvsun.session.codec;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 对比各编解码器编码和解码一个session全部属性的耗时，每个session编码后的字节数在setUp时输出，
+ * 运行main方法即可
+ *
+ * @author 陈敬
+ * @since 1.1.4-SNAPSHOT
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AttributeCodecBenchmark {
+    private static final int COMPRESS_THRESHOLD = 256;
+
+    @Param({"jdk", "compact", "compressing"})
+    private String codecName;
+
+    private AttributeCodec codec;
+    private Map<String, Object> attributes;
+    private List<byte[]> encoded;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        switch (codecName) {
+            case "jdk":
+                codec = new JdkAttributeCodec();
+                break;
+            case "compact":
+                codec = new CompactAttributeCodec();
+                break;
+            default:
+                codec = new CompressingAttributeCodec(new CompactAttributeCodec(), COMPRESS_THRESHOLD);
+        }
+        attributes = session();
+        encoded = new ArrayList<>();
+        int bytes = 0;
+        for (Object value : attributes.values()) {
+            byte[] data = codec.encode(value);
+            encoded.add(data);
+            bytes += data.length;
+        }
+        System.out.println(codecName + "编码一个session共" + bytes + "字节");
+    }
+
+    @Benchmark
+    public void encode(Blackhole blackhole) {
+        for (Object value : attributes.values()) {
+            blackhole.consume(codec.encode(value));
+        }
+    }
+
+    @Benchmark
+    public void decode(Blackhole blackhole) {
+        for (byte[] data : encoded) {
+            blackhole.consume(codec.decode(data));
+        }
+    }
+
+    /**
+     * 典型的session属性：登录用户的标识、角色、权限列表以及一些标志位和时间
+     */
+    private static Map<String, Object> session() {
+        Map<String, Object> attributes = new LinkedHashMap<>();
+        attributes.put("userId", 1024L);
+        attributes.put("username", "zhangsan");
+        attributes.put("admin", false);
+        attributes.put("loginTime", new Date(0));
+        attributes.put("roles", new ArrayList<>(Arrays.asList("ROLE_STUDENT", "ROLE_TEACHER")));
+        Map<String, Object> user = new LinkedHashMap<>();
+        user.put("id", 1024L);
+        user.put("name", "张三");
+        user.put("email", "zhangsan@example.com");
+        user.put("department", "计算机学院");
+        attributes.put("user", user);
+        List<String> permissions = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            permissions.add("course:" + i + ":read");
+        }
+        attributes.put("permissions", permissions);
+        return attributes;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(AttributeCodecBenchmark.class.getSimpleName()).build()).run();
+    }
+}
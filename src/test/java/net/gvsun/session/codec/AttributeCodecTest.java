@@ -0,0 +1,58 @@
+package net.gvsun.session.codec;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class AttributeCodecTest {
+    private static final int THRESHOLD = 64;
+
+    private static List<AttributeCodec> codecs() {
+        return Arrays.asList(
+                new JdkAttributeCodec(),
+                new CompactAttributeCodec(),
+                new CompressingAttributeCodec(new JdkAttributeCodec(), THRESHOLD),
+                new CompressingAttributeCodec(new CompactAttributeCodec(), THRESHOLD));
+    }
+
+    private static List<Object> values() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("id", 42L);
+        map.put("roles", new ArrayList<>(Arrays.asList("admin", "user")));
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            large.append("repeated-text-");
+        }
+        return Arrays.asList("value", 1, 2L, true, 3.5d, new byte[]{1, 2, 3}, map, large.toString(), new Date(0));
+    }
+
+    @Test
+    public void everyCodecDecodesEveryFormat() {
+        for (AttributeCodec writer : codecs()) {
+            for (Object value : values()) {
+                byte[] encoded = writer.encode(value);
+                for (AttributeCodec reader : codecs()) {
+                    Object decoded = reader.decode(encoded);
+                    String message = writer.getClass().getSimpleName() + " -> " + reader.getClass().getSimpleName();
+                    if (value instanceof byte[]) {
+                        assertArrayEquals(message, (byte[]) value, (byte[]) decoded);
+                    } else {
+                        assertEquals(message, value, decoded);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void compressesLargeValues() {
+        CompressingAttributeCodec codec = new CompressingAttributeCodec(new CompactAttributeCodec(), THRESHOLD);
+        String large = (String) values().get(7);
+        byte[] encoded = codec.encode(large);
+        assertEquals(CompressingAttributeCodec.FORMAT, encoded[0]);
+        assertTrue(encoded.length < large.length());
+        assertEquals(large, new JdkAttributeCodec().decode(encoded));
+    }
+}
@@ -0,0 +1,55 @@
+package net.gvsun.session.config;
+
+import net.gvsun.session.UnifySessionMetrics;
+import net.gvsun.session.UnifySessionProperties;
+import org.junit.Test;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.core.env.MapPropertySource;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class UnifySessionConfigurationTest {
+
+    private static AnnotationConfigApplicationContext context(Map<String, Object> properties) {
+        AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+        properties.put("usession.projectName", "test");
+        properties.put("usession.redis.host", "localhost");
+        context.getEnvironment().getPropertySources().addFirst(new MapPropertySource("test", properties));
+        context.register(UnifySessionConfiguration.class, RedisConfig.class);
+        context.refresh();
+        return context;
+    }
+
+    @Test
+    public void publishesMemoryRepositoryMetrics() {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("usession.repositoryType", UnifySessionProperties.MEMORY_REPOSITORY);
+        properties.put("usession.memory.maxSessions", 100);
+        properties.put("usession.memory.segments", 4);
+        properties.put("usession.writeBehind.enabled", true);
+        try (AnnotationConfigApplicationContext context = context(properties)) {
+            assertNotNull(context.getBean(FilterRegistrationBean.class).getFilter());
+            UnifySessionMetrics metrics = context.getBean(UnifySessionMetrics.class);
+            assertEquals(4, metrics.getEvictionPolicies().size());
+            assertNotNull(metrics.getWriteBehind());
+            assertNull(metrics.getNearCache());
+            assertNull(metrics.getSingleFlight());
+            assertNull(metrics.getCompressionStats());
+        }
+    }
+
+    @Test
+    public void leavesDisabledMetricsEmpty() {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("usession.repositoryType", UnifySessionProperties.MEMORY_REPOSITORY);
+        try (AnnotationConfigApplicationContext context = context(properties)) {
+            UnifySessionMetrics metrics = context.getBean(UnifySessionMetrics.class);
+            assertNull(metrics.getEvictionPolicies());
+            assertNull(metrics.getWriteBehind());
+        }
+    }
+}
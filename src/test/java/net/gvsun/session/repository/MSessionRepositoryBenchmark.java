@@ -0,0 +1,113 @@
+package net.gvsun.session.repository;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 对比一次请求（查找、访问、保存session）中写时复制和原来每次完整复制session的开销，
+ * 运行main方法时会启用GC分析器，gc.alloc.rate.norm即每次请求分配的字节数
+ *
+ * @author 陈敬
+ * @since 1.1.4-SNAPSHOT
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MSessionRepositoryBenchmark {
+    @Param({"20"})
+    private int attributeCount;
+
+    private MSessionRepository repository;
+    private Map<String, MSession> copyingSessions;
+    private String sid;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        repository = new MSessionRepository();
+        MSession session = repository.createSession();
+        for (int i = 0; i < attributeCount; i++) {
+            session.setAttribute("attribute" + i, "value" + i);
+        }
+        repository.save(session);
+        sid = session.getId();
+        copyingSessions = new ConcurrentHashMap<>();
+        copyingSessions.put(sid, fullCopy(session));
+    }
+
+    /**
+     * 只读取属性的请求
+     */
+    @Benchmark
+    public MSession readRequest() {
+        MSession session = repository.findById(sid);
+        session.getAttribute("attribute0");
+        session.setLastAccessedTime(System.currentTimeMillis());
+        repository.save(session);
+        return session;
+    }
+
+    /**
+     * 修改一个属性的请求
+     */
+    @Benchmark
+    public MSession writeRequest() {
+        MSession session = repository.findById(sid);
+        session.setAttribute("attribute0", "changed");
+        session.setLastAccessedTime(System.currentTimeMillis());
+        repository.save(session);
+        return session;
+    }
+
+    @Benchmark
+    public MSession readRequestFullCopy() {
+        MSession session = fullCopy(copyingSessions.get(sid));
+        session.getAttribute("attribute0");
+        session.setLastAccessedTime(System.currentTimeMillis());
+        copyingSessions.put(session.getId(), fullCopy(session));
+        return session;
+    }
+
+    @Benchmark
+    public MSession writeRequestFullCopy() {
+        MSession session = fullCopy(copyingSessions.get(sid));
+        session.setAttribute("attribute0", "changed");
+        session.setLastAccessedTime(System.currentTimeMillis());
+        copyingSessions.put(session.getId(), fullCopy(session));
+        return session;
+    }
+
+    /**
+     * 原来的复制方式：复制出属性名集合，把全部属性放进新的Map
+     */
+    private static MSession fullCopy(MSession source) {
+        MSession copy = new MSession(source.getId());
+        for (String name : source.getAttributeNames()) {
+            Object val = source.getAttribute(name);
+            if (val != null) {
+                copy.setAttribute(name, val);
+            }
+        }
+        copy.clearChanges();
+        copy.setCreationTime(source.getCreationTime());
+        copy.setLastAccessedTime(source.getLastAccessedTime());
+        copy.setMaxInactiveInterval(source.getMaxInactiveInterval());
+        return copy;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(MSessionRepositoryBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
@@ -0,0 +1,142 @@
+package net.gvsun.session.repository;
+
+import net.gvsun.session.SessionDestroyedEvent;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class MSessionRepositoryTest {
+    private final List<String> destroyed = new CopyOnWriteArrayList<>();
+    private MSessionRepository repository;
+
+    @After
+    public void tearDown() {
+        if (repository != null) {
+            repository.destroy();
+        }
+    }
+
+    private MSessionRepository repository() {
+        MSessionRepository repository = new MSessionRepository();
+        repository.setApplicationEventPublisher(event -> {
+            if (event instanceof SessionDestroyedEvent) {
+                destroyed.add(((SessionDestroyedEvent) event).getSession().getId());
+            }
+        });
+        return repository;
+    }
+
+    /**
+     * 保存一个已经过期的session
+     */
+    private MSession saveExpired(MSessionRepository repository) {
+        MSession session = repository.createSession();
+        session.setMaxInactiveInterval(1);
+        session.setAttribute("name", "value");
+        session.setLastAccessedTime(System.currentTimeMillis() - 10000);
+        repository.save(session);
+        return session;
+    }
+
+    @Test
+    public void cleanupRemovesExpiredSessionsWithoutLookup() {
+        repository = repository();
+        MSession expired = saveExpired(repository);
+        MSession active = repository.createSession();
+        active.setAttribute("name", "value");
+        repository.save(active);
+
+        assertEquals(1, repository.cleanupExpiredSessions());
+        assertEquals(1, repository.getSessionCount());
+        assertEquals(1, repository.getExpiredCount());
+        assertEquals(1, destroyed.size());
+        assertEquals(expired.getId(), destroyed.get(0));
+        assertNotNull(repository.findById(active.getId()));
+        assertEquals(0, repository.cleanupExpiredSessions());
+    }
+
+    @Test
+    public void resavedSessionIsNotSwept() {
+        repository = repository();
+        MSession session = saveExpired(repository);
+        //同一个session以新的访问时间重新保存，移到新的过期桶中
+        session.setLastAccessedTime(System.currentTimeMillis());
+        repository.save(session);
+
+        assertEquals(0, repository.cleanupExpiredSessions());
+        assertTrue(destroyed.isEmpty());
+        assertNotNull(repository.findById(session.getId()));
+    }
+
+    @Test
+    public void sweeperThreadRemovesExpiredSessions() throws InterruptedException {
+        repository = repository();
+        MSession session = saveExpired(repository);
+        repository.startExpirySweeper(20);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (repository.getSessionCount() > 0) {
+            assertTrue("等待超时", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        assertEquals(1, destroyed.size());
+        assertEquals(session.getId(), destroyed.get(0));
+    }
+
+    @Test
+    public void concurrentSavesStayWithinBound() throws Exception {
+        int maxSessions = 4;
+        int threads = 8;
+        repository = repository();
+        SessionEvictionPolicy policy = new SessionEvictionPolicy(SessionEvictionPolicy.LRU, maxSessions, 0);
+        repository.setEvictionPolicy(policy);
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < maxSessions * 2; i++) {
+            MSession session = repository.createSession();
+            session.setAttribute("name", "value");
+            repository.save(session);
+            ids.add(session.getId());
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            futures.add(executor.submit(() -> {
+                start.await();
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < 5000; i++) {
+                    String sid = ids.get(random.nextInt(ids.size()));
+                    int op = random.nextInt(10);
+                    if (op == 0) {
+                        repository.deleteById(sid);
+                    } else {
+                        //被淘汰或删除的id重新保存，和其他线程对同一个id的淘汰、删除交错
+                        MSession session = new MSession(sid);
+                        session.setAttribute("name", "value" + i);
+                        repository.save(session);
+                    }
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get(30, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+
+        assertTrue(repository.getSessionCount() <= maxSessions);
+        assertEquals(repository.getSessionCount(), policy.getSize());
+    }
+}
@@ -0,0 +1,111 @@
+package net.gvsun.session.repository;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MappedFileSessionRepositoryTest {
+    private static final int FILE_SIZE = 64 * 1024;
+    private Path dir;
+    private Path file;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("usession");
+        file = dir.resolve("sessions.dat");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(dir);
+    }
+
+    @Test
+    public void recoversSessionsAfterRestart() throws Exception {
+        MappedFileSessionRepository repository = new MappedFileSessionRepository(file.toString(), FILE_SIZE);
+        MSession session = repository.createSession();
+        session.setAttribute("name", "value");
+        repository.save(session);
+        session.setLastAccessedTime(System.currentTimeMillis() + 1000);
+        repository.save(session);
+        repository.destroy();
+
+        repository = new MappedFileSessionRepository(file.toString(), FILE_SIZE);
+        MSession recovered = repository.findById(session.getId());
+        assertNotNull(recovered);
+        assertEquals("value", recovered.getAttribute("name"));
+        assertEquals(session.getLastAccessedTime(), recovered.getLastAccessedTime());
+        repository.destroy();
+    }
+
+    @Test
+    public void skipsCorruptedRecordAndKeepsLaterOnes() throws Exception {
+        MappedFileSessionRepository repository = new MappedFileSessionRepository(file.toString(), FILE_SIZE);
+        List<MSession> sessions = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            MSession session = repository.createSession();
+            session.setAttribute("index", i);
+            repository.save(session);
+            sessions.add(session);
+        }
+        repository.destroy();
+
+        //破坏第一条记录中的属性数据，模拟写入到一半时进程退出
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            int length = raf.readInt();
+            raf.seek(length - 1);
+            int last = raf.read();
+            raf.seek(length - 1);
+            raf.write(last ^ 0xFF);
+        }
+
+        repository = new MappedFileSessionRepository(file.toString(), FILE_SIZE);
+        assertNull(repository.findById(sessions.get(0).getId()));
+        for (int i = 1; i < sessions.size(); i++) {
+            MSession recovered = repository.findById(sessions.get(i).getId());
+            assertNotNull(recovered);
+            assertEquals(i, (int) recovered.getAttribute("index"));
+        }
+        //新的记录追加在已有记录之后，不会覆盖它们
+        MSession added = repository.createSession();
+        repository.save(added);
+        repository.destroy();
+
+        repository = new MappedFileSessionRepository(file.toString(), FILE_SIZE);
+        assertEquals(5, repository.getSessionCount());
+        assertNotNull(repository.findById(added.getId()));
+        repository.destroy();
+    }
+
+    @Test
+    public void touchDoesNotInvalidateRecord() throws Exception {
+        MappedFileSessionRepository repository = new MappedFileSessionRepository(file.toString(), FILE_SIZE);
+        MSession session = repository.createSession();
+        session.setAttribute("name", "value");
+        repository.save(session);
+        int used = repository.getUsedBytes();
+        session.setLastAccessedTime(System.currentTimeMillis() + 1000);
+        session.setMaxInactiveInterval(3600);
+        repository.save(session);
+        //只有访问时间变化时原地改写
+        assertEquals(used, repository.getUsedBytes());
+        repository.destroy();
+
+        repository = new MappedFileSessionRepository(file.toString(), FILE_SIZE);
+        MSession recovered = repository.findById(session.getId());
+        assertNotNull(recovered);
+        assertEquals(3600, recovered.getMaxInactiveInterval());
+        assertEquals(session.getLastAccessedTime(), recovered.getLastAccessedTime());
+        repository.destroy();
+    }
+}
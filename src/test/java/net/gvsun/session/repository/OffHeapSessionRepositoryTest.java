@@ -0,0 +1,143 @@
+package net.gvsun.session.repository;
+
+import net.gvsun.session.codec.AttributeCodec;
+import net.gvsun.session.codec.CompactAttributeCodec;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class OffHeapSessionRepositoryTest {
+    private static final int SLAB_SIZE = 4096;
+    private OffHeapSessionRepository repository;
+
+    @After
+    public void tearDown() {
+        if (repository != null) {
+            repository.destroy();
+        }
+    }
+
+    @Test
+    public void storesSessionsAcrossShards() {
+        repository = new OffHeapSessionRepository(SLAB_SIZE, 64 * SLAB_SIZE, 4, new CompactAttributeCodec());
+        assertEquals(4, repository.getShardCount());
+        List<MSession> sessions = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            MSession session = repository.createSession();
+            session.setAttribute("index", i);
+            repository.save(session);
+            sessions.add(session);
+        }
+        assertEquals(200, repository.getSessionCount());
+        for (int i = 0; i < sessions.size(); i += 2) {
+            repository.deleteById(sessions.get(i).getId());
+        }
+        assertEquals(100, repository.getSessionCount());
+        for (int i = 0; i < sessions.size(); i++) {
+            MSession found = repository.findById(sessions.get(i).getId());
+            if (i % 2 == 0) {
+                assertNull(found);
+            } else {
+                assertNotNull(found);
+                assertEquals(i, (int) found.getAttribute("index"));
+            }
+        }
+    }
+
+    @Test
+    public void keepsOldRecordWhenGrowingFails() {
+        repository = new OffHeapSessionRepository(SLAB_SIZE, SLAB_SIZE, 1, new CompactAttributeCodec());
+        MSession session = repository.createSession();
+        session.setAttribute("name", "value");
+        repository.save(session);
+        //占满剩余空间，之后session变大时无法分配新的存储块
+        List<MSession> fillers = new ArrayList<>();
+        try {
+            while (true) {
+                MSession filler = repository.createSession();
+                filler.setAttribute("data", new byte[1000]);
+                repository.save(filler);
+                fillers.add(filler);
+            }
+        } catch (IllegalStateException expected) {
+            //堆外内存已用完
+        }
+        long used = repository.getUsedBytes();
+        session.setAttribute("large", new byte[1000]);
+        try {
+            repository.save(session);
+            fail();
+        } catch (IllegalStateException expected) {
+            //原来的存储块没有被释放
+        }
+        assertEquals(used, repository.getUsedBytes());
+        MSession found = repository.findById(session.getId());
+        assertNotNull(found);
+        assertEquals("value", found.getAttribute("name"));
+        assertNull(found.getAttribute("large"));
+        assertFalse(fillers.isEmpty());
+    }
+
+    @Test
+    public void reducesShardsToFitMemory() {
+        repository = new OffHeapSessionRepository(SLAB_SIZE, 2 * SLAB_SIZE, 8, new CompactAttributeCodec());
+        assertEquals(2, repository.getShardCount());
+    }
+
+    @Test
+    public void encodesOnlyChangedAttributes() {
+        AtomicInteger encoded = new AtomicInteger();
+        AtomicInteger decoded = new AtomicInteger();
+        CompactAttributeCodec delegate = new CompactAttributeCodec();
+        repository = new OffHeapSessionRepository(SLAB_SIZE, 4 * SLAB_SIZE, 1, new AttributeCodec() {
+            @Override
+            public byte[] encode(Object value) {
+                encoded.incrementAndGet();
+                return delegate.encode(value);
+            }
+
+            @Override
+            public Object decode(byte[] bytes) {
+                decoded.incrementAndGet();
+                return delegate.decode(bytes);
+            }
+        });
+        MSession session = repository.createSession();
+        session.setAttribute("a", "1");
+        session.setAttribute("b", "2");
+        session.setAttribute("c", "3");
+        repository.save(session);
+        assertEquals(3, encoded.get());
+
+        session.setAttribute("b", "changed");
+        repository.save(session);
+        //未变更的属性直接复制已保存的字节，不解码也不重新编码
+        assertEquals(4, encoded.get());
+        assertEquals(0, decoded.get());
+
+        MSession found = repository.findById(session.getId());
+        assertEquals("1", found.getAttribute("a"));
+        assertEquals("changed", found.getAttribute("b"));
+        assertEquals("3", found.getAttribute("c"));
+    }
+
+    @Test
+    public void skipsNonSerializableAttribute() {
+        repository = new OffHeapSessionRepository(SLAB_SIZE, 4 * SLAB_SIZE, 1, new CompactAttributeCodec());
+        MSession session = repository.createSession();
+        session.setAttribute("name", "value");
+        session.setAttribute("other", "value");
+        repository.save(session);
+
+        session.setAttribute("name", new Object());
+        repository.save(session);
+        MSession found = repository.findById(session.getId());
+        assertNull(found.getAttribute("name"));
+        assertEquals("value", found.getAttribute("other"));
+    }
+}
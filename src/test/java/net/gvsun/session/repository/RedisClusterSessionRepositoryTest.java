@@ -0,0 +1,221 @@
+package net.gvsun.session.repository;
+
+import net.gvsun.session.UnifySessionProperties;
+import net.gvsun.session.codec.CodecRedisSerializer;
+import net.gvsun.session.codec.JdkAttributeCodec;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.data.redis.connection.RedisClusterConfiguration;
+import org.springframework.data.redis.connection.RedisNode;
+import org.springframework.data.redis.connection.jedis.JedisConnectionFactory;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+import redis.clients.jedis.Jedis;
+import redis.embedded.RedisServer;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * 在本地启动三个主节点组成的Redis集群，验证hash tag的key在集群模式下的读写
+ */
+public class RedisClusterSessionRepositoryTest {
+    private static final int NODES = 3;
+    private static final int SLOTS = 16384;
+    private static final List<RedisServer> servers = new ArrayList<>();
+    private static final List<Integer> ports = new ArrayList<>();
+    private static Path dir;
+    private static JedisConnectionFactory connectionFactory;
+    private static RedisTemplate<String, Object> jdkRedisTemplate;
+    private static RedisTemplate<String, String> jsonRedisTemplate;
+
+    @BeforeClass
+    public static void startCluster() throws Exception {
+        dir = Files.createTempDirectory("usession-cluster");
+        for (int i = 0; i < NODES; i++) {
+            int port = freePort();
+            RedisServer server = RedisServer.newRedisServer()
+                    .port(port)
+                    .setting("cluster-enabled yes")
+                    .setting("cluster-config-file nodes-" + port + ".conf")
+                    .setting("dir " + dir)
+                    .setting("save \"\"")
+                    .build();
+            server.start();
+            servers.add(server);
+            ports.add(port);
+        }
+        for (int i = 0; i < NODES; i++) {
+            try (Jedis jedis = new Jedis("127.0.0.1", ports.get(i))) {
+                if (i > 0) {
+                    jedis.clusterMeet("127.0.0.1", ports.get(0));
+                }
+                int from = SLOTS * i / NODES;
+                int to = SLOTS * (i + 1) / NODES;
+                int[] slots = new int[to - from];
+                for (int slot = from; slot < to; slot++) {
+                    slots[slot - from] = slot;
+                }
+                jedis.clusterAddSlots(slots);
+            }
+        }
+        awaitClusterReady();
+
+        RedisClusterConfiguration configuration = new RedisClusterConfiguration();
+        for (int port : ports) {
+            configuration.addClusterNode(new RedisNode("127.0.0.1", port));
+        }
+        connectionFactory = new JedisConnectionFactory(configuration);
+        connectionFactory.afterPropertiesSet();
+        jdkRedisTemplate = new RedisTemplate<>();
+        jdkRedisTemplate.setConnectionFactory(connectionFactory);
+        jdkRedisTemplate.setKeySerializer(new StringRedisSerializer());
+        jdkRedisTemplate.setHashKeySerializer(new StringRedisSerializer());
+        jdkRedisTemplate.setHashValueSerializer(new CodecRedisSerializer(new JdkAttributeCodec()));
+        jdkRedisTemplate.afterPropertiesSet();
+        jsonRedisTemplate = new RedisTemplate<>();
+        jsonRedisTemplate.setConnectionFactory(connectionFactory);
+        jsonRedisTemplate.setKeySerializer(new StringRedisSerializer());
+        jsonRedisTemplate.setValueSerializer(new StringRedisSerializer());
+        jsonRedisTemplate.setHashKeySerializer(new StringRedisSerializer());
+        jsonRedisTemplate.setHashValueSerializer(new StringRedisSerializer());
+        jsonRedisTemplate.afterPropertiesSet();
+    }
+
+    @AfterClass
+    public static void stopCluster() throws IOException {
+        if (connectionFactory != null) {
+            connectionFactory.destroy();
+        }
+        for (RedisServer server : servers) {
+            server.stop();
+        }
+        if (dir != null) {
+            for (Path file : Files.newDirectoryStream(dir)) {
+                Files.deleteIfExists(file);
+            }
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    private static RedisSessionRepository repository(String projectName) {
+        UnifySessionProperties properties = new UnifySessionProperties();
+        properties.setProjectName(projectName);
+        RedisSessionRepository repository = new RedisSessionRepository(jdkRedisTemplate, jsonRedisTemplate, properties, event -> {
+        });
+        repository.setHashTaggedKeys(true);
+        return repository;
+    }
+
+    @Test
+    public void savesAndFindsSessionAcrossProjects() {
+        RedisSessionRepository a = repository("a");
+        RedisSession session = a.createSession();
+        session.setAttribute("name", "value");
+        a.save(session);
+        jsonRedisTemplate.opsForHash().put("{" + session.getId() + "}:b", RedisSessionRepository.PUBLIC + "user", "\"u\"");
+        jdkRedisTemplate.opsForHash().put("{" + session.getId() + "}:b", "secret", "hidden");
+
+        a.setSharePrefetchProjects(Arrays.asList("b"));
+        RedisSession found = a.findById(session.getId());
+        assertNotNull(found);
+        assertEquals("value", found.getAttribute("name"));
+        assertEquals(session.getCreationTime(), found.getCreationTime());
+        Map<String, String> shared = found.getPrefetchedShareAttributes("b");
+        assertEquals(1, shared.size());
+        assertEquals("\"u\"", shared.get("user"));
+
+        Map<String, Map<String, String>> attributes = a.findShareAttributes(session.getId(),
+                Collections.singletonMap("b", Arrays.asList("user")));
+        assertEquals("\"u\"", attributes.get("b").get("user"));
+    }
+
+    @Test
+    public void renamesAndDeletesAllKeysOfSession() {
+        RedisSessionRepository a = repository("a");
+        RedisSession session = a.createSession();
+        session.setAttribute("name", "value");
+        a.save(session);
+        RedisSessionRepository b = repository("b");
+        RedisSession inB = b.findById(session.getId());
+        inB.setAttribute("other", 1);
+        b.save(inB);
+
+        String oldId = session.getId();
+        RedisSession loaded = a.findById(oldId);
+        loaded.changeSessionId();
+        a.save(loaded);
+        assertNull(a.findById(oldId));
+        RedisSession renamed = b.findById(loaded.getId());
+        assertNotNull(renamed);
+        assertEquals(1, (int) renamed.getAttribute("other"));
+
+        a.deleteById(loaded.getId());
+        assertNull(a.findById(loaded.getId()));
+        assertNull(b.findById(loaded.getId()));
+        assertFalse(jdkRedisTemplate.hasKey("{" + loaded.getId() + "}:b"));
+    }
+
+    @Test
+    public void savesSessionInOneTransactionOnItsNode() {
+        RedisSessionRepository a = repository("a");
+        RedisSession session = a.createSession();
+        session.setAttribute("name", "value");
+        for (int port : ports) {
+            try (Jedis jedis = new Jedis("127.0.0.1", port)) {
+                jedis.configResetStat();
+            }
+        }
+        a.save(session);
+        //所有写命令在slot所在节点上的一个MULTI/EXEC事务中执行
+        assertEquals(1, commandCalls("exec"));
+        assertEquals(1, commandCalls("multi"));
+        assertEquals("value", a.findById(session.getId()).getAttribute("name"));
+    }
+
+    /**
+     * 所有节点上执行某个命令的次数
+     */
+    private static long commandCalls(String command) {
+        long calls = 0;
+        for (int port : ports) {
+            try (Jedis jedis = new Jedis("127.0.0.1", port)) {
+                for (String line : jedis.info("commandstats").split("\r?\n")) {
+                    if (line.startsWith("cmdstat_" + command + ":")) {
+                        String value = line.substring(line.indexOf("calls=") + "calls=".length());
+                        calls += Long.parseLong(value.substring(0, value.indexOf(',')));
+                    }
+                }
+            }
+        }
+        return calls;
+    }
+
+    private static void awaitClusterReady() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 20000;
+        for (int port : ports) {
+            try (Jedis jedis = new Jedis("127.0.0.1", port)) {
+                while (!jedis.clusterInfo().contains("cluster_state:ok")) {
+                    assertTrue("集群启动超时", System.currentTimeMillis() < deadline);
+                    Thread.sleep(100);
+                }
+            }
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
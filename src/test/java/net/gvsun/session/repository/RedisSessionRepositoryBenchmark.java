@@ -0,0 +1,141 @@
+package net.gvsun.session.repository;
+
+import net.gvsun.session.UnifySessionProperties;
+import net.gvsun.session.codec.CodecRedisSerializer;
+import net.gvsun.session.codec.JdkAttributeCodec;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.jedis.JedisConnectionFactory;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+import redis.embedded.RedisServer;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 对比加载session时一次往返的findById和原来逐个调用hasKey、hscan、hget的加载方式，
+ * 运行main方法即可，Redis使用嵌入式服务
+ *
+ * @author 陈敬
+ * @since 1.1.4-SNAPSHOT
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RedisSessionRepositoryBenchmark {
+    private static final String PROJECT_NAME = "benchmark";
+
+    @Param({"4", "32"})
+    private int attributeCount;
+
+    private RedisServer server;
+    private JedisConnectionFactory connectionFactory;
+    private RedisTemplate<String, Object> jdkRedisTemplate;
+    private RedisTemplate<String, String> jsonRedisTemplate;
+    private RedisSessionRepository repository;
+    private String sid;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        server = new RedisServer(port);
+        server.start();
+        connectionFactory = new JedisConnectionFactory(new RedisStandaloneConfiguration("localhost", port));
+        connectionFactory.afterPropertiesSet();
+        jdkRedisTemplate = new RedisTemplate<>();
+        jdkRedisTemplate.setConnectionFactory(connectionFactory);
+        jdkRedisTemplate.setKeySerializer(new StringRedisSerializer());
+        jdkRedisTemplate.setHashKeySerializer(new StringRedisSerializer());
+        jdkRedisTemplate.setHashValueSerializer(new CodecRedisSerializer(new JdkAttributeCodec()));
+        jdkRedisTemplate.afterPropertiesSet();
+        jsonRedisTemplate = new RedisTemplate<>();
+        jsonRedisTemplate.setConnectionFactory(connectionFactory);
+        jsonRedisTemplate.setKeySerializer(new StringRedisSerializer());
+        jsonRedisTemplate.setValueSerializer(new StringRedisSerializer());
+        jsonRedisTemplate.setHashKeySerializer(new StringRedisSerializer());
+        jsonRedisTemplate.setHashValueSerializer(new StringRedisSerializer());
+        jsonRedisTemplate.afterPropertiesSet();
+
+        UnifySessionProperties properties = new UnifySessionProperties();
+        properties.setProjectName(PROJECT_NAME);
+        repository = new RedisSessionRepository(jdkRedisTemplate, jsonRedisTemplate, properties, event -> {
+        });
+        RedisSession session = repository.createSession();
+        for (int i = 0; i < attributeCount; i++) {
+            session.setAttribute("attribute" + i, "value" + i);
+        }
+        repository.save(session);
+        sid = session.getId();
+        jsonRedisTemplate.opsForHash().put(sid + ":" + PROJECT_NAME, RedisSessionRepository.PUBLIC + "user", "{\"name\":\"u\"}");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        connectionFactory.destroy();
+        server.stop();
+    }
+
+    @Benchmark
+    public RedisSession findById() {
+        return repository.findById(sid, PROJECT_NAME);
+    }
+
+    /**
+     * 原来的加载方式：判断两个key是否存在，分别扫描私有属性和共享属性，再逐个读取创建时间和最后访问时间
+     */
+    @Benchmark
+    public RedisSession sequentialCalls() throws IOException {
+        String key = sid + ":" + PROJECT_NAME;
+        Boolean hasSession = jdkRedisTemplate.hasKey(sid);
+        if (hasSession == null || !hasSession) {
+            return null;
+        }
+        Boolean hasKey = jdkRedisTemplate.hasKey(key);
+        Map<String, String> shareAttributeMap = new HashMap<>();
+        Map<String, Object> privateAttributeMap = new HashMap<>();
+        if (hasKey != null && hasKey) {
+            ScanOptions shareBuild = ScanOptions.scanOptions().match("[^:]*").count(1000).build();
+            try (Cursor<Map.Entry<Object, Object>> cursor = jdkRedisTemplate.opsForHash().scan(key, shareBuild)) {
+                while (cursor.hasNext()) {
+                    Map.Entry<Object, Object> next = cursor.next();
+                    privateAttributeMap.put((String) next.getKey(), next.getValue());
+                }
+            }
+            ScanOptions publicShareBuild = ScanOptions.scanOptions().match(":*").count(1000).build();
+            try (Cursor<Map.Entry<Object, Object>> cursor = jsonRedisTemplate.opsForHash().scan(key, publicShareBuild)) {
+                while (cursor.hasNext()) {
+                    Map.Entry<Object, Object> next = cursor.next();
+                    shareAttributeMap.put((String) next.getKey(), (String) next.getValue());
+                }
+            }
+        }
+        Object creationTime = jdkRedisTemplate.opsForHash().get(sid, "creationTime");
+        Object lastAccessedTime = jdkRedisTemplate.opsForHash().get(sid, "lastAccessedTime");
+
+        RedisSession redisSession = new RedisSession(sid);
+        shareAttributeMap.forEach(redisSession::setAttribute);
+        privateAttributeMap.forEach(redisSession::setAttribute);
+        redisSession.setCreationTime((Long) creationTime);
+        redisSession.setLastAccessedTime(lastAccessedTime != null ? (Long) lastAccessedTime : redisSession.getCreationTime());
+        return redisSession;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(RedisSessionRepositoryBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,276 @@
+package net.gvsun.session.repository;
+
+import net.gvsun.session.SessionCreatedEvent;
+import net.gvsun.session.UnifySessionProperties;
+import net.gvsun.session.codec.CodecRedisSerializer;
+import net.gvsun.session.codec.CompactAttributeCodec;
+import net.gvsun.session.codec.JdkAttributeCodec;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.jedis.JedisConnectionFactory;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+import redis.embedded.RedisServer;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class RedisSessionRepositoryTest {
+    private static RedisServer server;
+    private static JedisConnectionFactory connectionFactory;
+    private RedisTemplate<String, Object> jdkRedisTemplate;
+    private RedisTemplate<String, String> jsonRedisTemplate;
+
+    @BeforeClass
+    public static void startServer() throws IOException {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        server = new RedisServer(port);
+        server.start();
+        connectionFactory = new JedisConnectionFactory(new RedisStandaloneConfiguration("localhost", port));
+        connectionFactory.afterPropertiesSet();
+    }
+
+    @AfterClass
+    public static void stopServer() throws IOException {
+        if (connectionFactory != null) {
+            connectionFactory.destroy();
+        }
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    @Before
+    public void setUp() {
+        jdkRedisTemplate = new RedisTemplate<>();
+        jdkRedisTemplate.setConnectionFactory(connectionFactory);
+        jdkRedisTemplate.setKeySerializer(new StringRedisSerializer());
+        jdkRedisTemplate.setHashKeySerializer(new StringRedisSerializer());
+        jdkRedisTemplate.setHashValueSerializer(new CodecRedisSerializer(new JdkAttributeCodec()));
+        jdkRedisTemplate.afterPropertiesSet();
+        jsonRedisTemplate = new RedisTemplate<>();
+        jsonRedisTemplate.setConnectionFactory(connectionFactory);
+        jsonRedisTemplate.setKeySerializer(new StringRedisSerializer());
+        jsonRedisTemplate.setValueSerializer(new StringRedisSerializer());
+        jsonRedisTemplate.setHashKeySerializer(new StringRedisSerializer());
+        jsonRedisTemplate.setHashValueSerializer(new StringRedisSerializer());
+        jsonRedisTemplate.afterPropertiesSet();
+    }
+
+    @After
+    public void tearDown() {
+        jdkRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            connection.flushDb();
+            return null;
+        });
+    }
+
+    private RedisSessionRepository repository(String projectName) {
+        UnifySessionProperties properties = new UnifySessionProperties();
+        properties.setProjectName(projectName);
+        return new RedisSessionRepository(jdkRedisTemplate, jsonRedisTemplate, properties, event -> {
+        });
+    }
+
+    @Test
+    public void savesAndFindsSession() {
+        RedisSessionRepository repository = repository("a");
+        RedisSession session = repository.createSession();
+        session.setAttribute("name", "value");
+        repository.save(session);
+
+        RedisSession found = repository.findById(session.getId());
+        assertNotNull(found);
+        assertEquals("value", found.getAttribute("name"));
+        assertEquals(session.getCreationTime(), found.getCreationTime());
+        assertEquals(session.getLastAccessedTime(), found.getLastAccessedTime());
+    }
+
+    @Test
+    public void skipsNonSerializableAttribute() {
+        RedisSessionRepository repository = repository("a");
+        RedisSession session = repository.createSession();
+        session.setAttribute("name", "value");
+        session.setAttribute("other", "value");
+        repository.save(session);
+
+        session.setAttribute("name", new Object());
+        repository.save(session);
+        RedisSession found = repository.findById(session.getId());
+        assertNull(found.getAttribute("name"));
+        assertEquals("value", found.getAttribute("other"));
+    }
+
+    @Test
+    public void prefetchesOnlyShareAttributesOfOtherProjects() {
+        RedisSessionRepository a = repository("a");
+        RedisSession session = a.createSession();
+        session.setAttribute("name", "value");
+        a.save(session);
+        //项目b中同时有共享属性和私有属性
+        jsonRedisTemplate.opsForHash().put(session.getId() + ":b", RedisSessionRepository.PUBLIC + "user", "{\"name\":\"u\"}");
+        jdkRedisTemplate.opsForHash().put(session.getId() + ":b", "secret", "hidden");
+
+        a.setSharePrefetchProjects(Arrays.asList("a", "b", "c"));
+        RedisSession found = a.findById(session.getId());
+        assertNotNull(found);
+        assertEquals("value", found.getAttribute("name"));
+        Map<String, String> shared = found.getPrefetchedShareAttributes("b");
+        assertNotNull(shared);
+        assertEquals(1, shared.size());
+        assertEquals("{\"name\":\"u\"}", shared.get("user"));
+        Map<String, String> missing = found.getPrefetchedShareAttributes("c");
+        assertTrue(missing == null || missing.isEmpty());
+    }
+
+    @Test
+    public void metadataDoesNotDependOnAttributeCodec() {
+        RedisSessionRepository jdk = repository("a");
+        RedisSession session = jdk.createSession();
+        session.setAttribute("name", "value");
+        jdk.save(session);
+
+        //切换到紧凑编解码器之后仍然能读取已有的session，元数据仍然是JDK格式
+        jdkRedisTemplate.setHashValueSerializer(new CodecRedisSerializer(new CompactAttributeCodec()));
+        RedisSessionRepository compact = repository("a");
+        RedisSession found = compact.findById(session.getId());
+        assertNotNull(found);
+        assertEquals("value", found.getAttribute("name"));
+        assertEquals(session.getCreationTime(), found.getCreationTime());
+        found.setAttribute("count", 1);
+        compact.save(found);
+        byte[] creationTime = jdkRedisTemplate.execute((RedisCallback<byte[]>) connection ->
+                connection.hGet(session.getId().getBytes(), "creationTime".getBytes()));
+        assertTrue(JdkAttributeCodec.isJdkFormat(creationTime));
+
+        //切换回JDK编解码器时能读取紧凑格式写入的属性
+        jdkRedisTemplate.setHashValueSerializer(new CodecRedisSerializer(new JdkAttributeCodec()));
+        found = repository("a").findById(session.getId());
+        assertNotNull(found);
+        assertEquals(1, (int) found.getAttribute("count"));
+        assertEquals(session.getCreationTime(), found.getCreationTime());
+    }
+
+    @Test
+    public void nearCacheReturnsIndependentAttributes() {
+        RedisSessionRepository repository = repository("a");
+        repository.setNearCache(new SessionNearCache(100, 1024 * 1024, 60000));
+        RedisSession session = repository.createSession();
+        session.setAttribute("list", new ArrayList<>(Arrays.asList("x")));
+        repository.save(session);
+
+        RedisSession first = repository.findById(session.getId());
+        RedisSession second = repository.findById(session.getId());
+        assertEquals(1, repository.getNearCache().getHitCount());
+        List<String> list = first.getAttribute("list");
+        list.add("y");
+        assertEquals(Arrays.asList("x"), second.getAttribute("list"));
+        assertEquals(Arrays.asList("x"), repository.findById(session.getId()).getAttribute("list"));
+    }
+
+    @Test
+    public void copyDoesNotShareAttributes() {
+        RedisSessionRepository repository = repository("a");
+        RedisSession session = repository.createSession();
+        session.setAttribute("list", new ArrayList<>(Arrays.asList("x")));
+        repository.save(session);
+
+        RedisSession found = repository.findById(session.getId());
+        RedisSession copy = repository.copy(found);
+        List<String> list = copy.getAttribute("list");
+        list.add("y");
+        assertEquals(Arrays.asList("x"), found.getAttribute("list"));
+        assertEquals(found.getCreationTime(), copy.getCreationTime());
+        assertEquals(found.getLastAccessedTime(), copy.getLastAccessedTime());
+        //副本和加载出的session一样没有未保存的变更
+        repository.save(copy);
+        assertEquals(Arrays.asList("x"), repository.findById(session.getId()).getAttribute("list"));
+    }
+
+    @Test
+    public void maxInactiveIntervalChangeBypassesTouchThreshold() {
+        RedisSessionRepository repository = repository("a");
+        repository.setTouchThreshold(0.5);
+        RedisSession session = repository.createSession();
+        session.setAttribute("name", "value");
+        repository.save(session);
+        assertTrue(jdkRedisTemplate.getExpire(session.getId()) > 0);
+
+        //访问时间没有超过阈值，但永不过期的设置必须写入
+        RedisSession found = repository.findById(session.getId());
+        found.setMaxInactiveInterval(-1);
+        repository.save(found);
+        assertEquals(-1L, (long) jdkRedisTemplate.getExpire(session.getId()));
+        assertEquals(-1L, (long) jdkRedisTemplate.getExpire(session.getId() + ":a"));
+
+        //过期时间不变时仍然跳过写入
+        found.setMaxInactiveInterval(3600);
+        repository.save(found);
+        long ttl = jdkRedisTemplate.getExpire(session.getId());
+        assertTrue(ttl > 1800 && ttl <= 3600);
+        found.setLastAccessedTime(found.getLastAccessedTime() + 1000);
+        repository.save(found);
+        assertTrue(jdkRedisTemplate.getExpire(session.getId()) <= ttl);
+    }
+
+    @Test
+    public void publishesCreatedEventOnCreateWithoutLazyCreate() {
+        UnifySessionProperties properties = new UnifySessionProperties();
+        properties.setProjectName("a");
+        AtomicInteger created = new AtomicInteger();
+        RedisSessionRepository repository = new RedisSessionRepository(jdkRedisTemplate, jsonRedisTemplate, properties, event -> {
+            if (event instanceof SessionCreatedEvent) {
+                created.incrementAndGet();
+            }
+        });
+        RedisSession session = repository.createSession();
+        assertEquals(1, created.get());
+        session.setAttribute("a", 1);
+        repository.save(session);
+        assertEquals(1, created.get());
+    }
+
+    @Test
+    public void writeBehindPublishesCreatedEventOnce() throws Exception {
+        UnifySessionProperties properties = new UnifySessionProperties();
+        properties.setProjectName("a");
+        properties.setLazyCreate(true);
+        AtomicInteger created = new AtomicInteger();
+        RedisSessionRepository redis = new RedisSessionRepository(jdkRedisTemplate, jsonRedisTemplate, properties, event -> {
+            if (event instanceof SessionCreatedEvent) {
+                created.incrementAndGet();
+            }
+        });
+        WriteBehindSessionRepository<RedisSession> repository = new WriteBehindSessionRepository<>(redis, redis::snapshot, 16, 1);
+        try {
+            RedisSession session = repository.createSession();
+            session.setAttribute("a", 1);
+            repository.save(session);
+            assertNotNull(repository.findById(session.getId()));
+            //同一个请求中再次保存，原session已经标记为保存过
+            session.setAttribute("b", 2);
+            repository.save(session);
+            repository.save(session);
+            RedisSession found = repository.findById(session.getId());
+            assertEquals(2, (int) found.getAttribute("b"));
+            assertEquals(1, created.get());
+        } finally {
+            repository.destroy();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package net.gvsun.session.repository;
+
+import net.gvsun.session.SessionDestroyedEvent;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.*;
+
+public class SegmentedSessionRepositoryTest {
+    private final List<String> destroyed = new CopyOnWriteArrayList<>();
+    private final List<MSessionRepository> segments = new ArrayList<>();
+    private SegmentedSessionRepository repository;
+
+    @After
+    public void tearDown() {
+        if (repository != null) {
+            repository.destroy();
+        }
+    }
+
+    private SegmentedSessionRepository repository(int count) {
+        return new SegmentedSessionRepository(count, () -> {
+            MSessionRepository segment = new MSessionRepository();
+            segment.setApplicationEventPublisher(event -> {
+                if (event instanceof SessionDestroyedEvent) {
+                    destroyed.add(((SessionDestroyedEvent) event).getSession().getId());
+                }
+            });
+            segments.add(segment);
+            return segment;
+        });
+    }
+
+    /**
+     * 保存session的分段
+     */
+    private MSessionRepository segmentOf(String sid) {
+        for (MSessionRepository segment : segments) {
+            if (segment.findById(sid) != null) {
+                return segment;
+            }
+        }
+        return null;
+    }
+
+    private MSession saveExpired() {
+        MSession session = repository.createSession();
+        session.setMaxInactiveInterval(1);
+        session.setAttribute("name", "value");
+        session.setLastAccessedTime(System.currentTimeMillis() - 10000);
+        repository.save(session);
+        return session;
+    }
+
+    @Test
+    public void idChangeAcrossSegmentsRemovesOldEntry() {
+        repository = repository(2);
+        MSession session = repository.createSession();
+        session.setAttribute("name", "value");
+        repository.save(session);
+        int crossed = 0;
+        for (int i = 0; i < 20; i++) {
+            String oldId = session.getId();
+            MSessionRepository oldSegment = segmentOf(oldId);
+            session = repository.findById(oldId);
+            session.changeSessionId();
+            repository.save(session);
+
+            MSessionRepository newSegment = segmentOf(session.getId());
+            assertNotNull(newSegment);
+            if (newSegment != oldSegment) {
+                crossed++;
+            }
+            assertNull(segmentOf(oldId));
+            assertEquals(1, repository.getSessionCount());
+            assertEquals("value", repository.findById(session.getId()).getAttribute("name"));
+        }
+        //20次随机的id变化中至少有一次落到了另一个分段
+        assertTrue(crossed > 0);
+    }
+
+    @Test
+    public void cleanupPublishesDestroyedEventsFromAllSegments() {
+        repository = repository(4);
+        Set<String> expired = new HashSet<>();
+        for (int i = 0; i < 20; i++) {
+            expired.add(saveExpired().getId());
+        }
+        MSession active = repository.createSession();
+        active.setAttribute("name", "value");
+        repository.save(active);
+
+        assertEquals(20, repository.cleanupExpiredSessions());
+        assertEquals(20, repository.getExpiredCount());
+        assertEquals(1, repository.getSessionCount());
+        assertEquals(expired, new HashSet<>(destroyed));
+        assertEquals(20, destroyed.size());
+    }
+
+    @Test
+    public void resavedSessionMovesToNewBucket() {
+        repository = repository(4);
+        MSession session = saveExpired();
+        session.setLastAccessedTime(System.currentTimeMillis());
+        repository.save(session);
+
+        assertEquals(0, repository.cleanupExpiredSessions());
+        assertTrue(destroyed.isEmpty());
+        assertNotNull(repository.findById(session.getId()));
+    }
+
+    @Test
+    public void sweeperThreadsCleanEverySegment() throws InterruptedException {
+        repository = repository(4);
+        for (int i = 0; i < 20; i++) {
+            saveExpired();
+        }
+        repository.startExpirySweeper(20, 2);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (repository.getSessionCount() > 0) {
+            assertTrue("等待超时", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        assertEquals(20, destroyed.size());
+    }
+}
@@ -0,0 +1,52 @@
+package net.gvsun.session.repository;
+
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class SessionExpiryIndexTest {
+
+    @Test
+    public void pollsOnlyExpiredBuckets() {
+        SessionExpiryIndex index = new SessionExpiryIndex();
+        long now = 1_000_000;
+        index.add("a", now, 1);
+        index.add("b", now, 60);
+        index.add("forever", now, -1);
+
+        assertTrue(index.pollExpired(now).isEmpty());
+        assertEquals(Collections.singletonList("a"), index.pollExpired(now + 2000));
+        //已经取出的sessionId不会再次返回
+        assertTrue(index.pollExpired(now + 2000).isEmpty());
+        assertEquals(Collections.singletonList("b"), index.pollExpired(now + 61000));
+        assertTrue(index.pollExpired(Long.MAX_VALUE).isEmpty());
+    }
+
+    @Test
+    public void resaveMovesSessionToNewBucket() {
+        SessionExpiryIndex index = new SessionExpiryIndex();
+        long now = 1_000_000;
+        index.add("a", now, 1);
+        index.add("a", now + 10000, 1);
+
+        //原来的桶中已经没有这个session
+        assertTrue(index.pollExpired(now + 2000).isEmpty());
+        assertEquals(Collections.singletonList("a"), index.pollExpired(now + 12000));
+
+        //改为永不过期后从索引中移除
+        index.add("b", now, 1);
+        index.add("b", now, -1);
+        assertTrue(index.pollExpired(Long.MAX_VALUE).isEmpty());
+    }
+
+    @Test
+    public void removedSessionIsNotPolled() {
+        SessionExpiryIndex index = new SessionExpiryIndex();
+        long now = 1_000_000;
+        index.add("a", now, 1);
+        index.remove("a");
+        assertTrue(index.pollExpired(now + 2000).isEmpty());
+    }
+}
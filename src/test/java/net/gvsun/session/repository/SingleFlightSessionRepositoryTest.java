@@ -0,0 +1,125 @@
+package net.gvsun.session.repository;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SingleFlightSessionRepositoryTest {
+    private BlockingRepository delegate;
+    private SingleFlightSessionRepository<MSession> repository;
+    private MSession saved;
+
+    @Before
+    public void setUp() {
+        delegate = new BlockingRepository();
+        repository = new SingleFlightSessionRepository<>(delegate, MSession::new);
+        saved = delegate.createSession();
+        saved.setAttribute("name", "value");
+        delegate.save(saved);
+    }
+
+    @Test
+    public void concurrentLookupsReachDelegateOnce() throws Exception {
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<MSession>> futures = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                futures.add(executor.submit(() -> repository.findById(saved.getId())));
+            }
+            assertTrue(delegate.entered.await(5, TimeUnit.SECONDS));
+            //等待其他请求都加入正在进行的查找
+            long deadline = System.currentTimeMillis() + 5000;
+            while (repository.getCoalescedCount() < threads - 1) {
+                assertTrue("等待超时", System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+            delegate.release.countDown();
+
+            Map<MSession, Boolean> results = new IdentityHashMap<>();
+            for (Future<MSession> future : futures) {
+                MSession session = future.get(5, TimeUnit.SECONDS);
+                assertEquals("value", session.getAttribute("name"));
+                results.put(session, true);
+            }
+            assertEquals(1, delegate.findCount.get());
+            assertEquals(1, repository.getLoadCount());
+            //每个请求得到独立的副本
+            assertEquals(threads, results.size());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void saveClosesInFlightLookup() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<MSession> stale = executor.submit(() -> repository.findById(saved.getId()));
+            assertTrue(delegate.entered.await(5, TimeUnit.SECONDS));
+            MSession session = new MSession(saved);
+            session.setAttribute("name", "changed");
+            repository.save(session);
+
+            //保存之后的查找重新访问仓库，不使用之前发起的查找
+            MSession found = repository.findById(saved.getId());
+            assertEquals("changed", found.getAttribute("name"));
+            assertEquals(2, delegate.findCount.get());
+            delegate.release.countDown();
+            assertNotNull(stale.get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void deleteClosesInFlightLookup() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<MSession> stale = executor.submit(() -> repository.findById(saved.getId()));
+            assertTrue(delegate.entered.await(5, TimeUnit.SECONDS));
+            repository.deleteById(saved.getId());
+
+            assertNull(repository.findById(saved.getId()));
+            assertEquals(2, delegate.findCount.get());
+            delegate.release.countDown();
+            stale.get(5, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * 第一次查找在release之前一直阻塞的仓库
+     */
+    private static final class BlockingRepository extends MSessionRepository {
+        private final AtomicInteger findCount = new AtomicInteger();
+        private final CountDownLatch entered = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public MSession findById(String sid) {
+            if (findCount.incrementAndGet() == 1) {
+                entered.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return super.findById(sid);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package net.gvsun.session.repository;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.*;
+
+public class WriteBehindSessionRepositoryTest {
+    private WriteBehindSessionRepository<MSession> repository;
+
+    @After
+    public void tearDown() throws Exception {
+        if (repository != null) {
+            repository.destroy();
+        }
+    }
+
+    @Test
+    public void writesSnapshotTakenAtSave() {
+        repository = new WriteBehindSessionRepository<>(new MSessionRepository(), MSession::snapshot, 16, 1);
+        MSession session = repository.createSession();
+        session.setAttribute("name", "saved");
+        repository.save(session);
+        //保存之后的修改不属于这次保存
+        session.setAttribute("name", "changed");
+        session.setAttribute("other", "changed");
+
+        MSession found = repository.findById(session.getId());
+        assertNotNull(found);
+        assertEquals("saved", found.getAttribute("name"));
+        assertNull(found.getAttribute("other"));
+    }
+
+    @Test
+    public void keepsChangesOfTheSameSessionObject() {
+        repository = new WriteBehindSessionRepository<>(new MSessionRepository(), MSession::snapshot, 16, 1);
+        MSession session = repository.createSession();
+        session.setAttribute("a", 1);
+        repository.save(session);
+        session.setAttribute("b", 2);
+        repository.save(session);
+
+        MSession found = repository.findById(session.getId());
+        assertEquals(1, (int) found.getAttribute("a"));
+        assertEquals(2, (int) found.getAttribute("b"));
+    }
+
+    @Test
+    public void retriesFailedWrites() throws InterruptedException {
+        FailingRepository delegate = new FailingRepository(1);
+        repository = new WriteBehindSessionRepository<>(delegate, MSession::snapshot, 16, 1);
+        MSession session = repository.createSession();
+        session.setAttribute("name", "value");
+        repository.save(session);
+
+        await(() -> repository.getWrittenCount() == 1);
+        assertEquals(1, repository.getFailureCount());
+        assertEquals(1, repository.getRetryCount());
+        assertEquals(0, repository.getDroppedCount());
+        assertEquals("value", repository.findById(session.getId()).getAttribute("name"));
+    }
+
+    @Test
+    public void dropsWriteAfterMaxAttempts() throws InterruptedException {
+        FailingRepository delegate = new FailingRepository(Integer.MAX_VALUE);
+        repository = new WriteBehindSessionRepository<>(delegate, MSession::snapshot, 16, 1);
+        MSession session = repository.createSession();
+        session.setAttribute("name", "value");
+        repository.save(session);
+
+        await(() -> repository.getDroppedCount() == 1);
+        assertEquals(WriteBehindSessionRepository.MAX_ATTEMPTS, repository.getFailureCount());
+        assertEquals(WriteBehindSessionRepository.MAX_ATTEMPTS - 1, repository.getRetryCount());
+        assertNull(repository.findById(session.getId()));
+        //放弃保存后变更回到原session，下一次保存时重新写入
+        assertEquals(Collections.singleton("name"), session.drainChangedAttributeNames());
+    }
+
+    @Test
+    public void marksSourceSavedWhenQueued() {
+        RecordingRepository delegate = new RecordingRepository();
+        repository = new WriteBehindSessionRepository<>(delegate, MSession::snapshot, 16, 1);
+        MSession session = repository.createSession();
+        session.setAttribute("a", 1);
+        session.changeSessionId();
+        repository.save(session);
+        assertEquals(session.getId(), session.getOriginalId());
+        assertTrue(session.drainChangedAttributeNames().isEmpty());
+        assertNotNull(repository.findById(session.getId()));
+
+        //之后的保存只包含新的变更
+        session.setAttribute("b", 2);
+        repository.save(session);
+        assertNotNull(repository.findById(session.getId()));
+        assertEquals(Arrays.asList(Collections.singleton("a"), Collections.singleton("b")), delegate.changes);
+    }
+
+    @Test
+    public void mergesCoalescedSnapshots() throws InterruptedException {
+        RecordingRepository delegate = new RecordingRepository();
+        delegate.blocked = new CountDownLatch(1);
+        repository = new WriteBehindSessionRepository<>(delegate, MSession::snapshot, 16, 1);
+        MSession session = repository.createSession();
+        session.setAttribute("a", 1);
+        repository.save(session);
+        //第一次写入被阻塞，之后的两次保存合并为一次
+        await(() -> delegate.entered.get() == 1);
+        session.setAttribute("b", 2);
+        repository.save(session);
+        session.setAttribute("c", 3);
+        repository.save(session);
+        assertEquals(1, repository.getCoalescedCount());
+        delegate.blocked.countDown();
+
+        MSession found = repository.findById(session.getId());
+        assertEquals(2, delegate.changes.size());
+        assertEquals(new HashSet<>(Arrays.asList("b", "c")), delegate.changes.get(1));
+        assertEquals(1, (int) found.getAttribute("a"));
+        assertEquals(2, (int) found.getAttribute("b"));
+        assertEquals(3, (int) found.getAttribute("c"));
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            assertTrue("等待超时", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * 记录每次写入的变更属性名的仓库，可以阻塞写入
+     */
+    private static class RecordingRepository extends MSessionRepository {
+        private final List<Set<String>> changes = Collections.synchronizedList(new ArrayList<>());
+        private final AtomicInteger entered = new AtomicInteger();
+        private volatile CountDownLatch blocked;
+
+        @Override
+        public void save(MSession session) {
+            entered.incrementAndGet();
+            if (this.blocked != null) {
+                try {
+                    this.blocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            Set<String> changed = session.drainChangedAttributeNames();
+            this.changes.add(changed);
+            session.restoreChanges(changed, Collections.emptySet());
+            super.save(session);
+        }
+    }
+
+    /**
+     * 前几次保存失败的仓库
+     */
+    private static class FailingRepository extends MSessionRepository {
+        private final AtomicInteger failures;
+
+        private FailingRepository(int failures) {
+            this.failures = new AtomicInteger(failures);
+        }
+
+        @Override
+        public void save(MSession session) {
+            if (this.failures.getAndDecrement() > 0) {
+                throw new IllegalStateException("保存失败");
+            }
+            super.save(session);
+        }
+    }
+}